@@ -4,6 +4,9 @@ import com.hypixel.hytale.component.Holder;
 import com.hypixel.hytale.component.Store;
 import com.hypixel.hytale.component.system.DelayedSystem;
 import com.hypixel.hytale.logger.HytaleLogger;
+import com.hypixel.hytale.math.util.ChunkUtil;
+import com.hypixel.hytale.math.util.MathUtil;
+import com.hypixel.hytale.math.vector.Vector3d;
 import com.hypixel.hytale.protocol.packets.worldmap.UpdateWorldMapSettings;
 import com.hypixel.hytale.server.core.entity.entities.Player;
 import com.hypixel.hytale.server.core.event.events.ShutdownEvent;
@@ -11,6 +14,7 @@ import com.hypixel.hytale.server.core.event.events.player.AddPlayerToWorldEvent;
 import com.hypixel.hytale.server.core.event.events.player.PlayerDisconnectEvent;
 import com.hypixel.hytale.server.core.plugin.JavaPlugin;
 import com.hypixel.hytale.server.core.plugin.JavaPluginInit;
+import com.hypixel.hytale.server.core.universe.PlayerRef;
 import com.hypixel.hytale.server.core.universe.world.World;
 import com.hypixel.hytale.server.core.universe.world.WorldMapTracker;
 import com.hypixel.hytale.server.core.universe.world.events.AddWorldEvent;
@@ -22,15 +26,24 @@ import com.hypixel.hytale.server.core.universe.world.worldmap.markers.PlayerIcon
 import com.hypixel.hytale.server.core.util.Config;
 import com.hypixel.hytale.unsafe.UnsafeUtil;
 import dev.cerus.explorersmap.command.ExplorersMapCommand;
+import dev.cerus.explorersmap.command.ExplorersMapStatsCommand;
 import dev.cerus.explorersmap.config.ExplorersMapConfig;
 import dev.cerus.explorersmap.map.CustomPlayerIconMarkerProvider;
 import dev.cerus.explorersmap.map.CustomWorldMapTracker;
+import dev.cerus.explorersmap.map.GeneratedTileCache;
+import dev.cerus.explorersmap.map.MapBroadcastHub;
 import dev.cerus.explorersmap.map.MapSyncSystem;
+import dev.cerus.explorersmap.map.ResolutionMigration;
+import dev.cerus.explorersmap.map.TileMemoryCache;
 import dev.cerus.explorersmap.map.WorldMapDiskCache;
+import dev.cerus.explorersmap.storage.ExplorationResidency;
 import dev.cerus.explorersmap.storage.ExplorationStorage;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
 import java.lang.reflect.Field;
+import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.annotation.Nonnull;
 
 public class ExplorersMapPlugin extends JavaPlugin {
@@ -39,7 +52,12 @@ public class ExplorersMapPlugin extends JavaPlugin {
     private static ExplorersMapPlugin instance;
 
     private final Config<ExplorersMapConfig> config;
+    // Created in onWorldAdd and removed in onWorldRemove
+    private final Map<World, MapBroadcastHub> broadcastHubs = new ConcurrentHashMap<>();
+    private final Map<World, GeneratedTileCache> generatedTileCaches = new ConcurrentHashMap<>();
+    private ExplorationStorage explorationStorage;
     private WorldMapDiskCache worldMapDiskCache;
+    private ResolutionMigration resolutionMigration;
 
     public static ExplorersMapPlugin getInstance() {
         return instance;
@@ -55,7 +73,13 @@ public class ExplorersMapPlugin extends JavaPlugin {
         instance = this;
         config.save();
 
-        worldMapDiskCache = new WorldMapDiskCache(getDataDirectory().resolve("tiles"));
+        explorationStorage = new ExplorationStorage(getDataDirectory().resolve("discovered"),
+                () -> config.get().getExplorationMemoryBudgetMb() * 1024L * 1024L, () -> config.get().isExportExplorationJson());
+        worldMapDiskCache = new WorldMapDiskCache(getDataDirectory().resolve("tiles"),
+                new TileMemoryCache(() -> config.get().getTileCacheMemoryMb() * 1024L * 1024L));
+        resolutionMigration = new ResolutionMigration(worldMapDiskCache, getDataDirectory().resolve("tiles"),
+                () -> config.get().getRerenderThreads(), () -> config.get().getRerenderCpuPercent());
+        resolutionMigration.resume(config.get().getResolution());
 
         getEntityStoreRegistry().registerSystem(new MapSyncSystem());
 
@@ -65,20 +89,32 @@ public class ExplorersMapPlugin extends JavaPlugin {
         getEventRegistry().registerGlobal(RemoveWorldEvent.class, this::onWorldRemove);
 
         getCommandRegistry().registerCommand(new ExplorersMapCommand("explorersmap", "Open Explorers Map settings"));
+        getCommandRegistry().registerCommand(new ExplorersMapStatsCommand("explorersmapstats", "Show Explorers Map cache statistics"));
 
         getEntityStoreRegistry().registerSystem(new DelayedSystem<>(60) {
             @Override
             public void delayedTick(float v, int i, @Nonnull Store<EntityStore> store) {
-                CompletableFuture.runAsync(() -> {
-                    ExplorationStorage.saveAll(CustomWorldMapTracker.sanitizeWorldName(store.getExternalData().getWorld()));
-                });
+                World world = store.getExternalData().getWorld();
+                String worldName = CustomWorldMapTracker.sanitizeWorldName(world);
+
+                LongSet playerChunks = new LongOpenHashSet();
+                for (PlayerRef playerRef : world.getPlayerRefs()) {
+                    Vector3d position = playerRef.getTransform().getPosition();
+                    playerChunks.add(ChunkUtil.indexChunk(MathUtil.floor(position.getX()) >> 5, MathUtil.floor(position.getZ()) >> 5));
+                }
+                ExplorationResidency.updateHotShards(worldName, playerChunks);
+
+                explorationStorage.saveAllAsync(worldName);
+                explorationStorage.enforceMemoryBudgetAsync();
             }
         });
     }
 
     @Override
     protected void shutdown() {
-        ExplorationStorage.unloadFromAll(ExplorationStorage.UUID_GLOBAL);
+        explorationStorage.shutdown();
+        resolutionMigration.shutdown();
+        worldMapDiskCache.shutdown();
         LOGGER.atInfo().log("Explorers Map plugin has been shut down.");
     }
 
@@ -91,8 +127,9 @@ public class ExplorersMapPlugin extends JavaPlugin {
         String sanitizedName = CustomWorldMapTracker.sanitizeWorldName(world);
         UUID playerUuid = player.getUuid();
 
-        CompletableFuture.runAsync(() -> {
-            ExplorationStorage.load(sanitizedName, playerUuid);
+        explorationStorage.loadAsync(sanitizedName, playerUuid).exceptionally(throwable -> {
+            LOGGER.atSevere().log("Failed to load exploration data", throwable);
+            return null;
         }).thenRunAsync(() -> {
             WorldMapSettings worldMapSettings = world.getWorldMapManager().getWorldMapSettings();
             UpdateWorldMapSettings settingsPacket = worldMapSettings.getSettingsPacket();
@@ -129,16 +166,16 @@ public class ExplorersMapPlugin extends JavaPlugin {
 
     private void onPlayerDisconnect(PlayerDisconnectEvent event) {
         UUID uuid = event.getPlayerRef().getUuid();
-        CompletableFuture.runAsync(() -> ExplorationStorage.unloadFromAll(uuid));
+        explorationStorage.unloadFromAllAsync(uuid);
     }
 
     private void onWorldAdd(AddWorldEvent event) {
         World world = event.getWorld();
         String sanitizedName = CustomWorldMapTracker.sanitizeWorldName(world);
 
-        CompletableFuture.runAsync(() -> {
-            ExplorationStorage.load(sanitizedName, ExplorationStorage.UUID_GLOBAL);
-        });
+        explorationStorage.loadAsync(sanitizedName, ExplorationStorage.UUID_GLOBAL);
+        broadcastHubs.putIfAbsent(world, new MapBroadcastHub(world));
+        generatedTileCaches.putIfAbsent(world, new GeneratedTileCache(world));
 
         // Registry changes are safe on WorldAddEvent as it is a lifecycle event
         WorldMapManager worldMapManager = world.getWorldMapManager();
@@ -148,15 +185,44 @@ public class ExplorersMapPlugin extends JavaPlugin {
     }
 
     private void onWorldRemove(RemoveWorldEvent event) {
+        broadcastHubs.remove(event.getWorld());
+        generatedTileCaches.remove(event.getWorld());
         String sanitizedName = CustomWorldMapTracker.sanitizeWorldName(event.getWorld());
-        CompletableFuture.runAsync(() -> ExplorationStorage.unload(sanitizedName, ExplorationStorage.UUID_GLOBAL));
+        ExplorationResidency.removeWorld(sanitizedName);
+        worldMapDiskCache.flush(sanitizedName);
+        explorationStorage.unloadAsync(sanitizedName, ExplorationStorage.UUID_GLOBAL);
     }
 
     public Config<ExplorersMapConfig> getConfig() {
         return config;
     }
 
+    public ExplorationStorage getExplorationStorage() {
+        return explorationStorage;
+    }
+
     public WorldMapDiskCache getWorldMapDiskCache() {
         return worldMapDiskCache;
     }
+
+    public ResolutionMigration getResolutionMigration() {
+        return resolutionMigration;
+    }
+
+    /**
+     * Trackers of a world that was removed get a hub that is not kept, so the entry is not created again after
+     * {@link #onWorldRemove(RemoveWorldEvent)}
+     */
+    public MapBroadcastHub getBroadcastHub(World world) {
+        MapBroadcastHub hub = broadcastHubs.get(world);
+        return hub != null ? hub : new MapBroadcastHub(world);
+    }
+
+    /**
+     * Trackers of a world that was removed get a cache that is not kept, see {@link #getBroadcastHub(World)}
+     */
+    public GeneratedTileCache getGeneratedTileCache(World world) {
+        GeneratedTileCache cache = generatedTileCaches.get(world);
+        return cache != null ? cache : new GeneratedTileCache(world);
+    }
 }
@@ -0,0 +1,43 @@
+package dev.cerus.explorersmap.command;
+
+import com.hypixel.hytale.component.Ref;
+import com.hypixel.hytale.component.Store;
+import com.hypixel.hytale.server.core.Message;
+import com.hypixel.hytale.server.core.command.system.CommandContext;
+import com.hypixel.hytale.server.core.command.system.basecommands.AbstractPlayerCommand;
+import com.hypixel.hytale.server.core.universe.PlayerRef;
+import com.hypixel.hytale.server.core.universe.world.World;
+import com.hypixel.hytale.server.core.universe.world.storage.EntityStore;
+import dev.cerus.explorersmap.ExplorersMapPlugin;
+import dev.cerus.explorersmap.map.ResolutionMigration;
+import dev.cerus.explorersmap.map.TileMemoryCache;
+import dev.cerus.explorersmap.map.WorldMapDiskCache;
+import javax.annotation.Nonnull;
+
+public class ExplorersMapStatsCommand extends AbstractPlayerCommand {
+
+    public ExplorersMapStatsCommand(@Nonnull String name, @Nonnull String description) {
+        super(name, description);
+        requirePermission("explorersmap.command.stats");
+    }
+
+    @Override
+    protected void execute(@Nonnull CommandContext commandContext, @Nonnull Store<EntityStore> store, @Nonnull Ref<EntityStore> ref, @Nonnull PlayerRef playerRef, @Nonnull World world) {
+        WorldMapDiskCache diskCache = ExplorersMapPlugin.getInstance().getWorldMapDiskCache();
+        TileMemoryCache.Stats tileCache = diskCache.getMemoryCache().getStats();
+        commandContext.sendMessage(Message.raw(String.format("Tile cache: %d tiles (%d distinct), %d / %d KiB, %d hits, %d misses (%.1f%% hit rate), %d evictions",
+                tileCache.entries(), tileCache.images(), tileCache.bytes() / 1024, tileCache.budgetBytes() / 1024,
+                tileCache.hits(), tileCache.misses(), tileCache.hitRate() * 100, tileCache.evictions())));
+        commandContext.sendMessage(Message.raw(String.format("Tile I/O: %d running, %d queued, %d tiles waiting to be saved",
+                diskCache.getActiveTasks(), diskCache.getQueuedTasks(), diskCache.getPendingSaves())));
+        commandContext.sendMessage(Message.raw(String.format("Tile reads: %d / %d in flight, %d rejected, %d cancelled",
+                diskCache.getInFlightReads(), diskCache.getMaxInFlightReads(), diskCache.getRejectedReads(), diskCache.getCancelledReads())));
+
+        ResolutionMigration.Progress rerender = ExplorersMapPlugin.getInstance().getResolutionMigration().getProgress();
+        if (rerender != null) {
+            String state = rerender.finished() ? "done" : rerender.totalRegions() < 0 ? "listing regions" : String.format("%.1f%%", rerender.percent());
+            commandContext.sendMessage(Message.raw(String.format("Re-render to %s: %s, %d / %d regions, %d tiles rendered",
+                    rerender.resolution(), state, rerender.finishedRegions(), Math.max(0, rerender.totalRegions()), rerender.renderedTiles())));
+        }
+    }
+}
@@ -32,6 +32,33 @@ public class ExplorersMapConfig {
             .append(new KeyedCodec<>("UnlimitedPlayerTracking", Codec.BOOLEAN),
                     ExplorersMapConfig::setUnlimitedPlayerTracking,
                     ExplorersMapConfig::isUnlimitedPlayerTracking).add()
+            .append(new KeyedCodec<>("ExportExplorationJson", Codec.BOOLEAN),
+                    ExplorersMapConfig::setExportExplorationJson,
+                    ExplorersMapConfig::isExportExplorationJson).add()
+            .append(new KeyedCodec<>("ExplorationMemoryBudgetMb", Codec.INTEGER),
+                    ExplorersMapConfig::setExplorationMemoryBudgetMb,
+                    ExplorersMapConfig::getExplorationMemoryBudgetMb).add()
+            .append(new KeyedCodec<>("TileCacheMemoryMb", Codec.INTEGER),
+                    ExplorersMapConfig::setTileCacheMemoryMb,
+                    ExplorersMapConfig::getTileCacheMemoryMb).add()
+            .append(new KeyedCodec<>("RerenderThreads", Codec.INTEGER),
+                    ExplorersMapConfig::setRerenderThreads,
+                    ExplorersMapConfig::getRerenderThreads).add()
+            .append(new KeyedCodec<>("RerenderCpuPercent", Codec.INTEGER),
+                    ExplorersMapConfig::setRerenderCpuPercent,
+                    ExplorersMapConfig::getRerenderCpuPercent).add()
+            .append(new KeyedCodec<>("LevelOfDetail", Codec.BOOLEAN),
+                    ExplorersMapConfig::setLevelOfDetail,
+                    ExplorersMapConfig::isLevelOfDetail).add()
+            .append(new KeyedCodec<>("LevelOfDetailDistance", Codec.INTEGER),
+                    ExplorersMapConfig::setLevelOfDetailDistance,
+                    ExplorersMapConfig::getLevelOfDetailDistance).add()
+            .append(new KeyedCodec<>("MapBandwidthKb", Codec.INTEGER),
+                    ExplorersMapConfig::setMapBandwidthKb,
+                    ExplorersMapConfig::getMapBandwidthKb).add()
+            .append(new KeyedCodec<>("MaxPacketSizeKb", Codec.INTEGER),
+                    ExplorersMapConfig::setMaxPacketSizeKb,
+                    ExplorersMapConfig::getMaxPacketSizeKb).add()
             .build();
 
     private int explorationRadius = 3;
@@ -42,6 +69,15 @@ public class ExplorersMapConfig {
     private float minZoom = 8;
     private boolean saveInstanceTiles = false;
     private Resolution resolution = Resolution.FAST;
+    private boolean exportExplorationJson = false;
+    private int explorationMemoryBudgetMb = 64;
+    private int tileCacheMemoryMb = 64;
+    private int rerenderThreads = 2;
+    private int rerenderCpuPercent = 50;
+    private boolean levelOfDetail = false;
+    private int levelOfDetailDistance = 64;
+    private int mapBandwidthKb = 1024;
+    private int maxPacketSizeKb = 512;
 
     public void setExplorationRadius(int explorationRadius) {
         this.explorationRadius = explorationRadius;
@@ -99,6 +135,78 @@ public class ExplorersMapConfig {
         return saveInstanceTiles;
     }
 
+    public void setExportExplorationJson(boolean exportExplorationJson) {
+        this.exportExplorationJson = exportExplorationJson;
+    }
+
+    public boolean isExportExplorationJson() {
+        return exportExplorationJson;
+    }
+
+    public void setExplorationMemoryBudgetMb(int explorationMemoryBudgetMb) {
+        this.explorationMemoryBudgetMb = explorationMemoryBudgetMb;
+    }
+
+    public int getExplorationMemoryBudgetMb() {
+        return explorationMemoryBudgetMb;
+    }
+
+    public void setTileCacheMemoryMb(int tileCacheMemoryMb) {
+        this.tileCacheMemoryMb = tileCacheMemoryMb;
+    }
+
+    public int getTileCacheMemoryMb() {
+        return tileCacheMemoryMb;
+    }
+
+    public void setRerenderThreads(int rerenderThreads) {
+        this.rerenderThreads = rerenderThreads;
+    }
+
+    public int getRerenderThreads() {
+        return rerenderThreads;
+    }
+
+    public void setRerenderCpuPercent(int rerenderCpuPercent) {
+        this.rerenderCpuPercent = rerenderCpuPercent;
+    }
+
+    public int getRerenderCpuPercent() {
+        return rerenderCpuPercent;
+    }
+
+    public void setLevelOfDetail(boolean levelOfDetail) {
+        this.levelOfDetail = levelOfDetail;
+    }
+
+    public boolean isLevelOfDetail() {
+        return levelOfDetail;
+    }
+
+    public void setLevelOfDetailDistance(int levelOfDetailDistance) {
+        this.levelOfDetailDistance = levelOfDetailDistance;
+    }
+
+    public int getLevelOfDetailDistance() {
+        return levelOfDetailDistance;
+    }
+
+    public void setMapBandwidthKb(int mapBandwidthKb) {
+        this.mapBandwidthKb = mapBandwidthKb;
+    }
+
+    public int getMapBandwidthKb() {
+        return mapBandwidthKb;
+    }
+
+    public void setMaxPacketSizeKb(int maxPacketSizeKb) {
+        this.maxPacketSizeKb = maxPacketSizeKb;
+    }
+
+    public int getMaxPacketSizeKb() {
+        return maxPacketSizeKb;
+    }
+
     public void setResolutionType(String str) {
         setResolution(switch (str.toUpperCase()) {
             case "BEST" -> Resolution.BEST;
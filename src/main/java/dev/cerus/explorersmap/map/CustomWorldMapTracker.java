@@ -19,9 +19,19 @@ import com.hypixel.hytale.server.core.universe.world.worldmap.WorldMapSettings;
 import dev.cerus.explorersmap.ExplorersMapPlugin;
 import dev.cerus.explorersmap.config.ExplorersMapConfig;
 import dev.cerus.explorersmap.storage.ExplorationData;
+import dev.cerus.explorersmap.storage.ExplorationResidency;
 import dev.cerus.explorersmap.storage.ExplorationStorage;
 import dev.cerus.explorersmap.storage.ExploredRegion;
+import it.unimi.dsi.fastutil.longs.Long2ByteMap;
+import it.unimi.dsi.fastutil.longs.Long2ByteMaps;
+import it.unimi.dsi.fastutil.longs.Long2ByteOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongLists;
 import it.unimi.dsi.fastutil.longs.LongSet;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
@@ -29,20 +39,32 @@ import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.regex.Pattern;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 /**
- * Custom map tracker implementation - Fixed for Thread Safety
+ * Custom map tracker implementation
+ * <p>
+ * All state is owned by the tick. Changes like {@link #clearChunks(LongSet)} and {@link #reset(boolean)} are applied
+ * right away when they are requested by the thread running the tick, other threads queue them for the start of the
+ * next tick. Other threads can read the sent tiles through {@link #isLoaded(int, int)}, which uses the snapshot the
+ * tick publishes at its end.
  */
 public class CustomWorldMapTracker extends WorldMapTracker {
 
     private static final HytaleLogger LOGGER = HytaleLogger.forEnclosingClass();
     private static final Pattern INSTANCE_SUFFIX_PATTERN = Pattern.compile("-[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
+    // How far (in chunks) the player has to move before the levels of detail of the loaded tiles are checked again
+    private static final int LOD_REQUEUE_DISTANCE = 8;
+    // Failed loads of the exploration data are retried after 1, 2, 4... seconds, up to this
+    private static final float MAX_LOAD_RETRY_DELAY = 30;
 
     private static Method POI_UPDATE_METHOD;
     private static Field TRANSFORM_COMPONENT_FIELD;
@@ -63,11 +85,26 @@ public class CustomWorldMapTracker extends WorldMapTracker {
 
     private ExplorersMapConfig config;
 
-    private final ReentrantReadWriteLock loadedLock = new ReentrantReadWriteLock();
-    private final ReentrantReadWriteLock tickLock = new ReentrantReadWriteLock();
+    // Changes requested by other threads, applied by the tick
+    private final Queue<Runnable> queuedChanges = new ConcurrentLinkedQueue<>();
+    // The thread running the tick, set by every tick
+    private volatile Thread tickThread;
+    // Only accessed by the tick thread
+    private boolean ticking;
     private final CircleSpiralIterator spiralIterator = new CircleSpiralIterator();
-    private final HLongSet loaded = new HLongOpenHashSet();
+    private final SentTileIndex loaded = new SentTileIndex();
+    private final UpdateScheduler updateScheduler = new UpdateScheduler();
     private final HLongSet pendingReloadChunks = new HLongOpenHashSet();
+    // Stored tiles that are being read, cancelled when they are no longer needed
+    private final Long2ObjectMap<CompletableFuture<MapImage>> pendingReads = new Long2ObjectOpenHashMap<>();
+    // Level of detail mode: the index in Resolution.LEVELS each loaded tile was sent in
+    private final Long2ByteMap sentLevels = new Long2ByteOpenHashMap();
+    // Loaded tiles that have to be sent again in another resolution, nearest first
+    private final LongList lodQueue = new LongArrayList();
+    private final Long2ObjectMap<CompletableFuture<MapImage>> lodReads = new Long2ObjectOpenHashMap<>();
+    // The player chunk the queue was built for
+    private int lodOriginX = Integer.MIN_VALUE;
+    private int lodOriginZ = Integer.MIN_VALUE;
 
     // FIXED: Atomic reference to store position data pushed from the World Thread
     private final AtomicReference<Vector3d> safePosition = new AtomicReference<>(new Vector3d(0, 0, 0));
@@ -75,6 +112,18 @@ public class CustomWorldMapTracker extends WorldMapTracker {
     private boolean started;
     private List<ExploredRegion> loadFromDisk;
     private ExplorationData explorationData;
+    private ExplorationData globalData;
+    // The data set the stored tiles are sent from and the uuid it is stored under
+    private ExplorationData sendData;
+    private UUID sendDataOwner;
+    // Unloaded shards that still have to be sent, nearest first
+    private LongList pendingShards;
+    private CompletableFuture<?> pendingLoad;
+    // Whether the exploration data was requested and not received yet
+    private boolean dataRequested;
+    private int failedLoads;
+    // Seconds until a failed load is retried
+    private float loadRetryDelay;
     private Resolution currentResolution;
 
     public CustomWorldMapTracker(Player player) {
@@ -91,11 +140,36 @@ public class CustomWorldMapTracker extends WorldMapTracker {
     }
 
     public void tick(float dt) {
-        tickLock.writeLock().lock();
+        tickThread = Thread.currentThread();
+        ticking = true;
         try {
+            applyQueuedChanges();
             tick0(dt);
+            updateScheduler.send(dt, UpdateScheduler.getBandwidth(config), UpdateScheduler.getMaxPacketSize(config), this::writeUpdatePacket);
         } finally {
-            tickLock.writeLock().unlock();
+            ticking = false;
+            loaded.publish();
+        }
+    }
+
+    private void applyQueuedChanges() {
+        Runnable change;
+        while ((change = queuedChanges.poll()) != null) {
+            change.run();
+        }
+    }
+
+    /**
+     * Applies a change right away if called by the tick thread outside of a tick, otherwise it is applied at the start
+     * of the next tick. A queued change is dropped if the tracker is not ticked again, which only happens once the
+     * player left the world and its client map is gone anyway.
+     */
+    private void applyOrQueue(Runnable change) {
+        // Queued first, so changes that other threads queued before are applied before it
+        queuedChanges.add(change);
+        if (Thread.currentThread() == tickThread && !ticking) {
+            applyQueuedChanges();
+            loaded.publish();
         }
     }
 
@@ -131,14 +205,48 @@ public class CustomWorldMapTracker extends WorldMapTracker {
 
         // Load already explored tiles to send to the player
         if (loadFromDisk == null) {
-            explorationData = ExplorationStorage.getOrLoad(sanitizeWorldName(world), getPlayer().getUuid());
-            if (explorationData != null) {
-                ExplorationData dataToUse = config.isPerPlayerMap()
-                        ? explorationData
-                        : ExplorationStorage.getOrLoad(sanitizeWorldName(world), ExplorationStorage.UUID_GLOBAL);
-                loadFromDisk = dataToUse.copyRegionsForSending(playerChunkX, playerChunkZ);
+            if (pendingLoad != null && !pendingLoad.isDone()) {
+                // Never block the tick on disk I/O, try again once the data is loaded
+                return;
+            }
+            if (loadRetryDelay > 0) {
+                loadRetryDelay -= dt;
+                return;
             }
+            String worldName = sanitizeWorldName(world);
+            ExplorationStorage storage = ExplorersMapPlugin.getInstance().getExplorationStorage();
+            explorationData = storage.get(worldName, getPlayer().getUuid());
+            globalData = storage.get(worldName, ExplorationStorage.UUID_GLOBAL);
+            if (explorationData == null || globalData == null) {
+                if (dataRequested) {
+                    // The storage logged why the load failed, don't flood it with a load every tick
+                    dataRequested = false;
+                    loadRetryDelay = Math.min(MAX_LOAD_RETRY_DELAY, 1 << Math.min(failedLoads++, 5));
+                    return;
+                }
+                dataRequested = true;
+                pendingLoad = CompletableFuture.allOf(
+                        storage.loadAsync(worldName, getPlayer().getUuid()),
+                        storage.loadAsync(worldName, ExplorationStorage.UUID_GLOBAL)
+                );
+                return;
+            }
+            dataRequested = false;
+            failedLoads = 0;
+            sendData = config.isPerPlayerMap() ? explorationData : globalData;
+            sendDataOwner = config.isPerPlayerMap() ? getPlayer().getUuid() : ExplorationStorage.UUID_GLOBAL;
+
+            // Shards around the player are loaded before anything is sent, the rest is loaded while sending
+            LongSet nearShards = ExplorationResidency.getShardsAround(ExplorationData.shardKeyOfChunk(playerChunkX, playerChunkZ), 1);
+            nearShards.removeIf(sendData::isShardLoaded);
+            if (!nearShards.isEmpty()) {
+                pendingLoad = storage.loadShardsAsync(worldName, sendDataOwner, nearShards);
+                return;
+            }
+            loadFromDisk = sendData.copyRegionsForSending(playerChunkX, playerChunkZ);
+            pendingShards = sendData.getUnloadedShards(playerChunkX, playerChunkZ);
         }
+        queueNextShard(world, playerChunkX, playerChunkZ);
 
         if (world.isCompassUpdating()) {
             try {
@@ -153,7 +261,32 @@ public class CustomWorldMapTracker extends WorldMapTracker {
         }
     }
 
+    /**
+     * Queues the regions of the next unloaded shard once all queued regions were sent
+     */
+    private void queueNextShard(World world, int playerChunkX, int playerChunkZ) {
+        if (pendingShards == null || pendingShards.isEmpty() || (pendingLoad != null && !pendingLoad.isDone())) {
+            return;
+        }
+
+        if (!loadFromDisk.isEmpty()) {
+            return;
+        }
+        long shard = pendingShards.getLong(0);
+        if (sendData.isShardLoaded(shard)) {
+            pendingShards.removeLong(0);
+            loadFromDisk.addAll(sendData.copyShardForSending(shard, playerChunkX, playerChunkZ));
+        } else {
+            pendingLoad = ExplorersMapPlugin.getInstance().getExplorationStorage().loadShardsAsync(sanitizeWorldName(world), sendDataOwner, LongLists.singleton(shard));
+        }
+    }
+
     private void tickWorldMap(World world, WorldMapSettings worldMapSettings, int playerChunkX, int playerChunkZ, int maxGeneration) {
+        // The connection can't keep up, new tiles would only pile up in the queue
+        if (updateScheduler.isBacklogged(UpdateScheduler.getBandwidth(config))) {
+            return;
+        }
+
         List<MapChunk> toSend = new ArrayList<>();
 
         maxGeneration = loadArea(world, worldMapSettings, playerChunkX, playerChunkZ, maxGeneration, toSend);
@@ -162,171 +295,303 @@ public class CustomWorldMapTracker extends WorldMapTracker {
             if (shouldPersist(world)) {
                 // Mark loaded area as explored
                 toSend.forEach(chunk -> {
-                    if (explorationData != null) {
-                        explorationData.markExplored(chunk);
-                    }
-                    ExplorationStorage.getOrLoad(sanitizeWorldName(world), ExplorationStorage.UUID_GLOBAL).markExplored(chunk);
+                    explorationData.markExplored(chunk);
+                    globalData.markExplored(chunk);
                 });
             }
 
             if (!config.isPerPlayerMap()) {
-
                 // Broadcast to other players
-                world.execute(() -> {
-                    world.getPlayers().forEach(player -> {
-                        if (!player.getUuid().equals(getPlayer().getUuid())
-                            && player.getWorldMapTracker() instanceof CustomWorldMapTracker customWorldMapTracker) {
-                            customWorldMapTracker.writeUpdatePacket(toSend);
-                        }
-                    });
-                });
+                ExplorersMapPlugin.getInstance().getBroadcastHub(world).publish(toSend);
             }
         }
 
         // Reload pending chunks (from building tools or mods)
-        maxGeneration = reloadPending(world, worldMapSettings, maxGeneration, toSend);
+        maxGeneration = reloadPending(world, worldMapSettings, playerChunkX, playerChunkZ, maxGeneration, toSend);
 
         // Send pending already explored tiles
-        loadStored(world, worldMapSettings, config.getDiskLoadRate(), toSend);
+        int maxReads = loadStored(world, worldMapSettings, playerChunkX, playerChunkZ, config.getDiskLoadRate(), toSend);
+
+        if (config.isLevelOfDetail()) {
+            updateLevelOfDetail(world, worldMapSettings, playerChunkX, playerChunkZ, maxReads, toSend);
+        }
 
         if (!toSend.isEmpty()) {
-            writeUpdatePacket(toSend);
+            updateScheduler.offer(toSend);
         }
     }
 
     private int loadArea(World world, WorldMapSettings worldMapSettings, int playerChunkX, int playerChunkZ, int maxGeneration, List<MapChunk> out) {
-        loadedLock.writeLock().lock();
-        try {
-            this.spiralIterator.init(playerChunkX, playerChunkZ, 0, config.getExplorationRadius());
-            while (maxGeneration > 0 && this.spiralIterator.hasNext()) {
-                long chunkCoordinates = this.spiralIterator.next();
-                if (!this.loaded.contains(chunkCoordinates)) {
-                    CompletableFuture<MapImage> future = world.getWorldMapManager().getImageAsync(chunkCoordinates);
-                    if (!future.isDone()) {
-                        --maxGeneration;
-                    } else if (loaded.add(chunkCoordinates)) {
-                        int mapChunkX = ChunkUtil.xOfChunkIndex(chunkCoordinates);
-                        int mapChunkZ = ChunkUtil.zOfChunkIndex(chunkCoordinates);
-
-                        MapImage mapImage = future.getNow(null);
-
-                        if (shouldPersist(world)) {
-                            ExplorersMapPlugin.getInstance().getWorldMapDiskCache().saveImageToDiskAsync(world, mapChunkX, mapChunkZ, worldMapSettings.getImageScale(), currentResolution, mapImage).whenComplete((unused, throwable) -> {
-                                if (throwable != null) {
-                                    LOGGER.atSevere().log("Failed to save map tile", throwable);
-                                }
-                            });
-                        }
+        this.spiralIterator.init(playerChunkX, playerChunkZ, 0, config.getExplorationRadius());
+        while (maxGeneration > 0 && this.spiralIterator.hasNext()) {
+            long chunkCoordinates = this.spiralIterator.next();
+            if (!this.loaded.contains(chunkCoordinates)) {
+                CompletableFuture<MapImage> future = world.getWorldMapManager().getImageAsync(chunkCoordinates);
+                if (!future.isDone()) {
+                    --maxGeneration;
+                } else if (loaded.add(chunkCoordinates)) {
+                    int mapChunkX = ChunkUtil.xOfChunkIndex(chunkCoordinates);
+                    int mapChunkZ = ChunkUtil.zOfChunkIndex(chunkCoordinates);
 
-                        mapImage = currentResolution.rescale(mapImage);
-                        out.add(new MapChunk(mapChunkX, mapChunkZ, mapImage));
-                    }
+                    // Rescaled and saved once, no matter how many trackers generate the chunk
+                    Resolution resolution = getResolutionAt(mapChunkX, mapChunkZ, playerChunkX, playerChunkZ);
+                    out.add(ExplorersMapPlugin.getInstance().getGeneratedTileCache(world)
+                            .getTile(mapChunkX, mapChunkZ, future.getNow(null), resolution, worldMapSettings.getImageScale(), shouldPersist(world)));
+                    setSentLevel(chunkCoordinates, resolution);
                 }
             }
-            return maxGeneration;
-        } finally {
-            loadedLock.writeLock().unlock();
         }
+        return maxGeneration;
     }
 
-    private int loadStored(World world, WorldMapSettings worldMapSettings, int maxGeneration, List<MapChunk> out) {
+    private int loadStored(World world, WorldMapSettings worldMapSettings, int playerChunkX, int playerChunkZ, int maxGeneration, List<MapChunk> out) {
         if (loadFromDisk == null) {
             return maxGeneration;
         }
 
-        loadedLock.writeLock().lock();
-        try {
-            Iterator<ExploredRegion> regionIterator = loadFromDisk.iterator();
-            while (maxGeneration > 0 && regionIterator.hasNext()) {
-                ExploredRegion region = regionIterator.next();
-                Iterator<Long> iterator = region.getChunks().iterator();
-                while (maxGeneration > 0 && iterator.hasNext()) {
-                    long chunkCoordinates = iterator.next();
-                    int mapChunkX = ChunkUtil.xOfChunkIndex(chunkCoordinates);
-                    int mapChunkZ = ChunkUtil.zOfChunkIndex(chunkCoordinates);
+        Iterator<ExploredRegion> regionIterator = loadFromDisk.iterator();
+        while (maxGeneration > 0 && regionIterator.hasNext()) {
+            ExploredRegion region = regionIterator.next();
+            int position = region.nextToSend(0);
+            while (maxGeneration > 0 && position != -1) {
+                int localIndex = region.localIndexToSend(position);
+                long chunkCoordinates = region.chunkIndex(localIndex);
+                int mapChunkX = ChunkUtil.xOfChunkIndex(chunkCoordinates);
+                int mapChunkZ = ChunkUtil.zOfChunkIndex(chunkCoordinates);
 
-                    if (!this.loaded.contains(chunkCoordinates)) {
-                        CompletableFuture<MapImage> future = ExplorersMapPlugin.getInstance().getWorldMapDiskCache().readStoredImageAsync(world, mapChunkX, mapChunkZ, worldMapSettings.getImageScale(), currentResolution);
-                        if (!future.isDone()) {
-                            --maxGeneration;
-                        } else if (loaded.add(chunkCoordinates)) {
-                            iterator.remove();
-                            MapImage mapImage = future.getNow(null);
-                            int imageSize = MathUtil.fastFloor(32.0F * currentResolution.getScale());
-                            if (mapImage == null || mapImage.width != imageSize || mapImage.height != imageSize) {
-                                loaded.remove(chunkCoordinates);
-                                continue;
-                            }
+                if (!this.loaded.contains(chunkCoordinates)) {
+                    CompletableFuture<MapImage> future = pendingReads.get(chunkCoordinates);
+                    if (future == null) {
+                        Resolution resolution = getResolutionAt(mapChunkX, mapChunkZ, playerChunkX, playerChunkZ);
+                        future = ExplorersMapPlugin.getInstance().getWorldMapDiskCache().readStoredImageAsync(world, mapChunkX, mapChunkZ, worldMapSettings.getImageScale(), resolution);
+                    }
+                    if (future == null) {
+                        // Too many reads in flight, try again on the next tick
+                        --maxGeneration;
+                    } else if (!future.isDone()) {
+                        pendingReads.put(chunkCoordinates, future);
+                        --maxGeneration;
+                    } else if (loaded.add(chunkCoordinates)) {
+                        pendingReads.remove(chunkCoordinates);
+                        region.clear(localIndex);
+                        MapImage mapImage = future.isCompletedExceptionally() ? null : future.getNow(null);
+                        Resolution resolution = mapImage == null ? null : getSendableResolution(mapImage);
+                        if (resolution == null) {
+                            loaded.remove(chunkCoordinates);
+                        } else {
                             out.add(new MapChunk(mapChunkX, mapChunkZ, mapImage));
+                            setSentLevel(chunkCoordinates, resolution);
                         }
-                    } else {
-                        iterator.remove();
+                    }
+                } else {
+                    region.clear(localIndex);
+                    // Generated while it was being read
+                    CompletableFuture<MapImage> staleRead = pendingReads.remove(chunkCoordinates);
+                    if (staleRead != null) {
+                        staleRead.cancel(false);
                     }
                 }
+                position = region.nextToSend(position + 1);
+            }
 
-                if (region.isDone()) {
-                    regionIterator.remove();
-                }
+            if (region.isDone()) {
+                regionIterator.remove();
             }
-            return maxGeneration;
-        } finally {
-            loadedLock.writeLock().unlock();
         }
+        return maxGeneration;
     }
 
-    private int reloadPending(World world, WorldMapSettings worldMapSettings, int maxGeneration, List<MapChunk> out) {
-        loadedLock.writeLock().lock();
-        try {
-            LongIterator iterator = pendingReloadChunks.iterator();
-            while (maxGeneration > 0 && iterator.hasNext()) {
-                long chunkCoordinates = iterator.nextLong();
+    private int reloadPending(World world, WorldMapSettings worldMapSettings, int playerChunkX, int playerChunkZ, int maxGeneration, List<MapChunk> out) {
+        LongIterator iterator = pendingReloadChunks.iterator();
+        while (maxGeneration > 0 && iterator.hasNext()) {
+            long chunkCoordinates = iterator.nextLong();
 
-                if (!this.loaded.contains(chunkCoordinates)) {
-                    CompletableFuture<MapImage> future = world.getWorldMapManager().getImageAsync(chunkCoordinates);
-                    if (!future.isDone()) {
-                        --maxGeneration;
-                    } else if (loaded.add(chunkCoordinates)) {
-                        iterator.remove();
-                        int mapChunkX = ChunkUtil.xOfChunkIndex(chunkCoordinates);
-                        int mapChunkZ = ChunkUtil.zOfChunkIndex(chunkCoordinates);
-
-                        MapImage mapImage = future.getNow(null);
-
-                        if (shouldPersist(world)) {
-                            ExplorersMapPlugin.getInstance().getWorldMapDiskCache().saveImageToDiskAsync(world, mapChunkX, mapChunkZ, worldMapSettings.getImageScale(), currentResolution, mapImage).whenComplete((unused, throwable) -> {
-                                if (throwable != null) {
-                                    LOGGER.atSevere().log("Failed to save map tile", throwable);
-                                }
-                            });
-                        }
-
-                        mapImage = currentResolution.rescale(mapImage);
-                        out.add(new MapChunk(mapChunkX, mapChunkZ, mapImage));
-                    }
-                } else {
+            if (!this.loaded.contains(chunkCoordinates)) {
+                CompletableFuture<MapImage> future = world.getWorldMapManager().getImageAsync(chunkCoordinates);
+                if (!future.isDone()) {
+                    --maxGeneration;
+                } else if (loaded.add(chunkCoordinates)) {
                     iterator.remove();
+                    int mapChunkX = ChunkUtil.xOfChunkIndex(chunkCoordinates);
+                    int mapChunkZ = ChunkUtil.zOfChunkIndex(chunkCoordinates);
+
+                    // Rescaled and saved once, no matter how many trackers generate the chunk
+                    Resolution resolution = getResolutionAt(mapChunkX, mapChunkZ, playerChunkX, playerChunkZ);
+                    out.add(ExplorersMapPlugin.getInstance().getGeneratedTileCache(world)
+                            .getTile(mapChunkX, mapChunkZ, future.getNow(null), resolution, worldMapSettings.getImageScale(), shouldPersist(world)));
+                    setSentLevel(chunkCoordinates, resolution);
                 }
+            } else {
+                iterator.remove();
             }
-            return maxGeneration;
-        } finally {
-            loadedLock.writeLock().unlock();
+        }
+        return maxGeneration;
+    }
+
+    /**
+     * Sends loaded tiles again in the resolution that matches their current distance, once the player moved far enough
+     * for the levels to change
+     */
+    private void updateLevelOfDetail(World world, WorldMapSettings worldMapSettings, int playerChunkX, int playerChunkZ, int maxReads, List<MapChunk> out) {
+        if (Math.abs((long) playerChunkX - lodOriginX) >= LOD_REQUEUE_DISTANCE || Math.abs((long) playerChunkZ - lodOriginZ) >= LOD_REQUEUE_DISTANCE) {
+            lodOriginX = playerChunkX;
+            lodOriginZ = playerChunkZ;
+            lodQueue.clear();
+            // Reads for the previous levels are of no use anymore, the tiles are queued again with their new level
+            lodReads.values().forEach(future -> future.cancel(false));
+            lodReads.clear();
+            for (Long2ByteMap.Entry entry : Long2ByteMaps.fastIterable(sentLevels)) {
+                long index = entry.getLongKey();
+                if (getLevelAt(index, playerChunkX, playerChunkZ) != entry.getByteValue()) {
+                    lodQueue.add(index);
+                }
+            }
+            lodQueue.sort((a, b) -> Long.compare(distanceSquared(a, playerChunkX, playerChunkZ), distanceSquared(b, playerChunkX, playerChunkZ)));
+        }
+
+        int i = 0;
+        while (maxReads > 0 && i < lodQueue.size()) {
+            long index = lodQueue.getLong(i);
+            int level = getLevelAt(index, playerChunkX, playerChunkZ);
+            if (!sentLevels.containsKey(index) || sentLevels.get(index) == level) {
+                lodQueue.removeLong(i);
+                CompletableFuture<MapImage> staleRead = lodReads.remove(index);
+                if (staleRead != null) {
+                    staleRead.cancel(false);
+                }
+                continue;
+            }
+
+            int mapChunkX = ChunkUtil.xOfChunkIndex(index);
+            int mapChunkZ = ChunkUtil.zOfChunkIndex(index);
+            Resolution resolution = Resolution.LEVELS.get(level);
+            CompletableFuture<MapImage> future = lodReads.get(index);
+            if (future == null) {
+                future = ExplorersMapPlugin.getInstance().getWorldMapDiskCache().readStoredImageAsync(world, mapChunkX, mapChunkZ, worldMapSettings.getImageScale(), resolution);
+            }
+            if (future == null) {
+                // Too many reads in flight, try again on the next tick
+                break;
+            }
+            if (!future.isDone()) {
+                lodReads.put(index, future);
+                --maxReads;
+                i++;
+                continue;
+            }
+
+            lodReads.remove(index);
+            lodQueue.removeLong(i);
+            MapImage mapImage = future.isCompletedExceptionally() ? null : future.getNow(null);
+            // A tile that is not stored keeps its current level
+            if (mapImage != null && mapImage.width == getImageSize(resolution) && mapImage.height == mapImage.width) {
+                out.add(new MapChunk(mapChunkX, mapChunkZ, mapImage));
+                sentLevels.put(index, (byte) level);
+                --maxReads;
+            }
+        }
+    }
+
+    /**
+     * @return the resolution a tile is sent in, lower the further away it is from the player in level of detail mode
+     */
+    private Resolution getResolutionAt(int chunkX, int chunkZ, int playerChunkX, int playerChunkZ) {
+        if (!config.isLevelOfDetail()) {
+            return currentResolution;
+        }
+        return Resolution.LEVELS.get(getLevelAt(ChunkUtil.indexChunk(chunkX, chunkZ), playerChunkX, playerChunkZ));
+    }
+
+    private int getLevelAt(long chunkIndex, int playerChunkX, int playerChunkZ) {
+        int baseLevel = Math.max(0, Resolution.LEVELS.indexOf(currentResolution));
+        int band = (int) (Math.sqrt(distanceSquared(chunkIndex, playerChunkX, playerChunkZ)) / Math.max(1, config.getLevelOfDetailDistance()));
+        return Math.min(Resolution.LEVELS.size() - 1, baseLevel + band);
+    }
+
+    private static long distanceSquared(long chunkIndex, int playerChunkX, int playerChunkZ) {
+        long dx = ChunkUtil.xOfChunkIndex(chunkIndex) - playerChunkX;
+        long dz = ChunkUtil.zOfChunkIndex(chunkIndex) - playerChunkZ;
+        return dx * dx + dz * dz;
+    }
+
+    /**
+     * @return the resolution of a stored tile if it may be sent, null if it has the size of an old resolution
+     */
+    @Nullable
+    private Resolution getSendableResolution(MapImage mapImage) {
+        if (!config.isLevelOfDetail()) {
+            return mapImage.width == getImageSize(currentResolution) && mapImage.height == mapImage.width ? currentResolution : null;
+        }
+        // Any level at or below the configured resolution, the level is corrected later if it doesn't fit the distance
+        for (int level = Math.max(0, Resolution.LEVELS.indexOf(currentResolution)); level < Resolution.LEVELS.size(); level++) {
+            Resolution resolution = Resolution.LEVELS.get(level);
+            if (mapImage.width == getImageSize(resolution) && mapImage.height == mapImage.width) {
+                return resolution;
+            }
+        }
+        return null;
+    }
+
+    private void setSentLevel(long chunkIndex, Resolution resolution) {
+        if (config.isLevelOfDetail()) {
+            sentLevels.put(chunkIndex, (byte) Resolution.LEVELS.indexOf(resolution));
         }
     }
 
+    private static int getImageSize(Resolution resolution) {
+        return MathUtil.fastFloor(32.0F * resolution.getScale());
+    }
+
     @Override
     public void clearChunks(@Nonnull LongSet chunkIndices) {
-        this.loadedLock.writeLock().lock();
-        try {
-            chunkIndices.forEach((index) -> {
-                if (!loaded.contains(index) && (loadFromDisk == null || loadFromDisk.stream().noneMatch(reg -> reg.getChunks().contains(index)))) {
-                    return;
-                }
-                this.loaded.remove(index);
-                this.pendingReloadChunks.add(index);
-            });
-        } finally {
-            this.loadedLock.writeLock().unlock();
+        // The caller may reuse the set
+        LongSet copy = new LongOpenHashSet(chunkIndices);
+        World world = getPlayer().getWorld();
+        if (world != null) {
+            ExplorersMapPlugin.getInstance().getGeneratedTileCache(world).invalidate(copy);
         }
+        applyOrQueue(() -> clearChunks0(copy));
+    }
+
+    private void clearChunks0(LongSet chunkIndices) {
+        chunkIndices.forEach((index) -> {
+            int chunkX = ChunkUtil.xOfChunkIndex(index);
+            int chunkZ = ChunkUtil.zOfChunkIndex(index);
+            if (!loaded.contains(index) && (loadFromDisk == null || loadFromDisk.stream().noneMatch(reg -> reg.getKey() == ChunkUtil.indexChunk(chunkX >> 4, chunkZ >> 4) && reg.isExplored(chunkX, chunkZ)))) {
+                return;
+            }
+            this.loaded.remove(index);
+            this.sentLevels.remove(index);
+            this.pendingReloadChunks.add(index);
+            CompletableFuture<MapImage> staleRead = this.pendingReads.remove(index);
+            if (staleRead != null) {
+                staleRead.cancel(false);
+            }
+            CompletableFuture<MapImage> staleLodRead = this.lodReads.remove(index);
+            if (staleLodRead != null) {
+                staleLodRead.cancel(false);
+            }
+        });
+    }
+
+    /**
+     * Queues tiles generated by the trackers of the world, see {@link MapBroadcastHub}. Tiles that were already sent,
+     * including the tiles this tracker generated itself, are skipped.
+     */
+    void queueBroadcast(List<MapChunk> chunks) {
+        queuedChanges.add(() -> {
+            List<MapChunk> toSend = new ArrayList<>();
+            for (MapChunk chunk : chunks) {
+                long chunkIndex = ChunkUtil.indexChunk(chunk.chunkX, chunk.chunkZ);
+                // Tiles of a previous resolution that were shared right before a reset
+                Resolution resolution = chunk.image == null ? null : getSendableResolution(chunk.image);
+                if (resolution != null && loaded.add(chunkIndex)) {
+                    toSend.add(chunk);
+                    setSentLevel(chunkIndex, resolution);
+                }
+            }
+            updateScheduler.offer(toSend);
+        });
     }
 
     private void writeUpdatePacket(List<MapChunk> list) {
@@ -343,46 +608,65 @@ public class CustomWorldMapTracker extends WorldMapTracker {
         reset(false);
     }
 
+    /**
+     * Forgets all sent tiles, so they are sent again. Applied right away on the tick thread, see
+     * {@link #applyOrQueue(Runnable)}.
+     *
+     * @param unload whether the client should remove the sent tiles from its map
+     */
     public void reset(boolean unload) {
-        loadedLock.writeLock().lock();
-        tickLock.writeLock().lock();
+        applyOrQueue(() -> reset0(unload));
+    }
 
+    private void reset0(boolean unload) {
+        updateScheduler.clear();
         if (unload) {
-            int imageSize = MathUtil.fastFloor(32.0F * currentResolution.getScale());
-            int fullMapChunkSize = 23 + 4 * imageSize * imageSize;
-            int packetSize = 2621427;
+            int imageSize = getImageSize(currentResolution);
+            int maxChunks = Math.max(1, UpdateScheduler.MAX_PACKET_SIZE / (23 + 4 * imageSize * imageSize));
 
             List<MapChunk> toRemove = new ArrayList<>();
-            for (long index : loaded) {
+            loaded.forEach(index -> {
                 toRemove.add(new MapChunk(ChunkUtil.xOfChunkIndex(index), ChunkUtil.zOfChunkIndex(index), null));
-                packetSize -= fullMapChunkSize;
-                if (packetSize < fullMapChunkSize) {
+                if (toRemove.size() >= maxChunks) {
                     writeUpdatePacket(toRemove);
                     toRemove.clear();
-                    packetSize = 2621427;
                 }
-            }
+            });
             writeUpdatePacket(toRemove);
         }
 
-        try {
-            explorationData = null;
-            loaded.clear();
-            loadFromDisk = null;
-            config = ExplorersMapPlugin.getInstance().getConfig().get();
-            currentResolution = config.getResolution();
-        } finally {
-            loadedLock.writeLock().unlock();
-            tickLock.writeLock().unlock();
-        }
+        explorationData = null;
+        globalData = null;
+        sendData = null;
+        sendDataOwner = null;
+        pendingShards = null;
+        pendingLoad = null;
+        dataRequested = false;
+        failedLoads = 0;
+        loadRetryDelay = 0;
+        loaded.clear();
+        pendingReads.values().forEach(future -> future.cancel(false));
+        pendingReads.clear();
+        sentLevels.clear();
+        lodQueue.clear();
+        lodReads.values().forEach(future -> future.cancel(false));
+        lodReads.clear();
+        lodOriginX = Integer.MIN_VALUE;
+        lodOriginZ = Integer.MIN_VALUE;
+        loadFromDisk = null;
+        config = ExplorersMapPlugin.getInstance().getConfig().get();
+        currentResolution = config.getResolution();
     }
 
     private boolean shouldPersist(World world) {
         return !world.getName().startsWith("instance-") || config.isSaveInstanceTiles();
     }
 
+    /**
+     * @return whether the tile was sent as of the end of the last tick, may be called from any thread
+     */
     public boolean isLoaded(int chunkX, int chunkZ) {
-        return loaded.contains(ChunkUtil.indexChunk(chunkX, chunkZ));
+        return loaded.snapshot().contains(chunkX, chunkZ);
     }
 
     public static String sanitizeWorldName(World world) {
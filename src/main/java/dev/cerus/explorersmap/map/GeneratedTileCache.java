@@ -0,0 +1,115 @@
+package dev.cerus.explorersmap.map;
+
+import com.hypixel.hytale.math.util.ChunkUtil;
+import com.hypixel.hytale.protocol.packets.worldmap.MapChunk;
+import com.hypixel.hytale.protocol.packets.worldmap.MapImage;
+import com.hypixel.hytale.server.core.universe.world.World;
+import dev.cerus.explorersmap.ExplorersMapPlugin;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The rescaled tiles of the chunks the trackers of a world generated recently
+ * <p>
+ * Players exploring together generate the same chunks. The first tracker rescales the generated image and queues it
+ * to be saved, every other tracker gets the same tile. An entry is dropped when its chunk is cleared, and it is not used
+ * if the world map returns different pixels for the chunk.
+ */
+public class GeneratedTileCache {
+
+    private static final int MAX_TILES = 2048;
+
+    private final World world;
+    // Access ordered, guarded by itself
+    private final Map<TileKey, CachedTile> tiles = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<TileKey, CachedTile> eldest) {
+            return size() > MAX_TILES;
+        }
+    };
+
+    public GeneratedTileCache(World world) {
+        this.world = world;
+    }
+
+    /**
+     * Returns the tile of a generated chunk image in the given resolution, rescaling and saving it if no tracker did
+     * so yet
+     *
+     * @param persist whether new tiles are saved to disk
+     */
+    MapChunk getTile(int chunkX, int chunkZ, MapImage generated, Resolution resolution, float imageScale, boolean persist) {
+        TileKey key = new TileKey(ChunkUtil.indexChunk(chunkX, chunkZ), resolution.getScale());
+        WorldMapDiskCache diskCache = ExplorersMapPlugin.getInstance().getWorldMapDiskCache();
+        // Hashed and rendered outside the lock, the entry is only replaced if no other tracker replaced it meanwhile.
+        // Trackers usually get the same image instance for a chunk, the pixels are only hashed if that is not the case.
+        long hash = 0;
+        boolean hashed = false;
+        CachedTile created = null;
+        while (true) {
+            CachedTile cached;
+            synchronized (tiles) {
+                cached = tiles.get(key);
+            }
+            if (cached != null && cached.source() == generated) {
+                return cached.tile();
+            }
+            if (!hashed) {
+                hash = hash(generated);
+                hashed = true;
+            }
+            if (cached != null && cached.hasPixelsOf(generated, hash)) {
+                return cached.tile();
+            }
+            if (created == null) {
+                // Identical tiles that are cached share their pixels with this one
+                MapChunk tile = new MapChunk(chunkX, chunkZ, diskCache.getMemoryCache().intern(resolution.rescale(generated)));
+                created = new CachedTile(generated, hash, tile);
+            }
+            synchronized (tiles) {
+                if (tiles.get(key) == cached) {
+                    tiles.put(key, created);
+                    break;
+                }
+            }
+        }
+
+        if (persist) {
+            diskCache.queueImageSave(world, chunkX, chunkZ, imageScale, resolution, generated);
+        }
+        return created.tile();
+    }
+
+    /**
+     * Drops the tiles of changed chunks in all resolutions
+     */
+    public void invalidate(LongSet chunkIndices) {
+        synchronized (tiles) {
+            tiles.keySet().removeIf(key -> chunkIndices.contains(key.chunkIndex()));
+        }
+    }
+
+    private static long hash(MapImage mapImage) {
+        return mapImage.data == null ? 0 : TileHash.of(mapImage.width, mapImage.height, mapImage.data);
+    }
+
+    private record TileKey(long chunkIndex, float scale) {
+    }
+
+    /**
+     * @param source     the generated image, compared by identity first. Its pixels are only compared if their hash
+     *                   matches, see {@link #hasPixelsOf(MapImage, long)}.
+     * @param sourceHash the hash of the pixels of the generated image
+     */
+    private record CachedTile(MapImage source, long sourceHash, MapChunk tile) {
+        /**
+         * @return true if the given image has the same pixels as the source, see {@link TileHash}
+         */
+        private boolean hasPixelsOf(MapImage generated, long generatedHash) {
+            return sourceHash == generatedHash && source.width == generated.width && source.height == generated.height
+                && Arrays.equals(source.data, generated.data);
+        }
+    }
+}
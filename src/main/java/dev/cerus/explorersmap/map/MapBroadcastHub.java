@@ -0,0 +1,67 @@
+package dev.cerus.explorersmap.map;
+
+import com.hypixel.hytale.math.util.ChunkUtil;
+import com.hypixel.hytale.protocol.packets.worldmap.MapChunk;
+import com.hypixel.hytale.server.core.universe.world.World;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Shares the tiles generated by the trackers of a world with all players in it when the map is shared
+ * <p>
+ * The tiles of all trackers are collected until the world thread runs the next flush, a tile that was generated
+ * several times in the meantime is only shared once. Every tracker receives one merged list per flush and only sends
+ * the tiles it has not sent yet.
+ */
+public class MapBroadcastHub {
+
+    private final World world;
+    // Guarded by itself
+    private final Long2ObjectMap<MapChunk> pending = new Long2ObjectOpenHashMap<>();
+    // Guarded by pending
+    private boolean flushScheduled;
+
+    public MapBroadcastHub(World world) {
+        this.world = world;
+    }
+
+    /**
+     * Queues generated tiles to be shared, may be called from any thread
+     */
+    public void publish(Collection<MapChunk> chunks) {
+        if (chunks.isEmpty()) {
+            return;
+        }
+        synchronized (pending) {
+            for (MapChunk chunk : chunks) {
+                pending.put(ChunkUtil.indexChunk(chunk.chunkX, chunk.chunkZ), chunk);
+            }
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        world.execute(this::flush);
+    }
+
+    private void flush() {
+        List<MapChunk> chunks;
+        synchronized (pending) {
+            flushScheduled = false;
+            chunks = List.copyOf(pending.values());
+            pending.clear();
+        }
+        if (chunks.isEmpty()) {
+            return;
+        }
+
+        // The same list is handed to every tracker, they only read it
+        world.getPlayers().forEach(player -> {
+            if (player.getWorldMapTracker() instanceof CustomWorldMapTracker customWorldMapTracker) {
+                customWorldMapTracker.queueBroadcast(chunks);
+            }
+        });
+    }
+}
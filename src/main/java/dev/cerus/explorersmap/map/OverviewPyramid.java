@@ -0,0 +1,267 @@
+package dev.cerus.explorersmap.map;
+
+import com.hypixel.hytale.logger.HytaleLogger;
+import com.hypixel.hytale.math.util.ChunkUtil;
+import com.hypixel.hytale.math.util.MathUtil;
+import com.hypixel.hytale.protocol.packets.worldmap.MapImage;
+import dev.cerus.explorersmap.storage.ExploredRegion;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nullable;
+
+/**
+ * Overview tiles combining 2x2, 4x4 and 8x8 chunks, composited from the stored chunk tiles
+ * <p>
+ * An overview tile of level L covers 2^L x 2^L chunks in 32x32 pixels, so every chunk gets {@code 32 >> L} pixels,
+ * the tile sizes of FAST, FASTER and FASTEST. The client still needs one tile per chunk, so overview tiles are sliced
+ * when they are read: one read and decode serves up to 64 chunks of a distant area instead of reading and rescaling
+ * every native tile. Level 1 is composited from the native chunk tiles, every other level from the level below.
+ * Tiles are composited again on a low priority thread of their own when a tile below them changes, so the tile I/O
+ * threads serving the players are not held up by it. Tiles stored by older versions have no overview tiles yet,
+ * the overview tiles above them are composited when a slice of them is read and missing.
+ * <p>
+ * Chunks that are not stored are fully transparent, every other pixel is opaque.
+ */
+final class OverviewPyramid {
+
+    private static final HytaleLogger LOGGER = HytaleLogger.forEnclosingClass();
+
+    static final int MAX_LEVEL = 3;
+    static final int TILE_SIZE = 32;
+
+    private final WorldMapDiskCache diskCache;
+    // Per level, starting at 1: tiles to composite again and the native scale of the chunk tiles below them
+    private final List<Map<OverviewTile, Float>> dirty = List.of(new ConcurrentHashMap<>(), new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
+    private final AtomicBoolean updating = new AtomicBoolean();
+    // Set while an update is queued, tiles flagged until it starts are picked up by it
+    private final AtomicBoolean updateScheduled = new AtomicBoolean();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ExplorersMap-Overviews");
+        thread.setDaemon(true);
+        // Players and the world threads come first
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    OverviewPyramid(WorldMapDiskCache diskCache) {
+        this.diskCache = diskCache;
+    }
+
+    /**
+     * @return the level whose slices have the tile size of the resolution, 0 if there is none
+     */
+    static int getLevel(Resolution resolution) {
+        int imageSize = MathUtil.fastFloor(32.0F * resolution.getScale());
+        for (int level = 1; level <= MAX_LEVEL; level++) {
+            if (TILE_SIZE >> level == imageSize) {
+                return level;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Flags the overview tiles above a native chunk tile as outdated, see {@link #scheduleUpdate()}
+     */
+    void markChanged(String world, int chunkX, int chunkZ, float nativeScale) {
+        dirty.get(0).put(new OverviewTile(world, 1, chunkX >> 1, chunkZ >> 1), nativeScale);
+    }
+
+    /**
+     * Composites all outdated tiles in the background, unless an update is queued already
+     */
+    void scheduleUpdate() {
+        if (!updateScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                updateScheduled.set(false);
+                update();
+            });
+        } catch (RejectedExecutionException e) {
+            // Shutting down, the remaining tiles are composited by shutdown()
+            updateScheduled.set(false);
+        }
+    }
+
+    /**
+     * Composites all outdated tiles, level by level. Returns right away if another thread is already updating, that
+     * thread also picks up the tiles flagged in the meantime.
+     */
+    private void update() {
+        // Checked again after releasing the flag, tiles flagged right before it was released would be left behind
+        while (hasDirtyTiles()) {
+            if (!updating.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                updateDirtyTiles();
+            } finally {
+                updating.set(false);
+            }
+        }
+    }
+
+    private boolean hasDirtyTiles() {
+        return dirty.stream().anyMatch(tiles -> !tiles.isEmpty());
+    }
+
+    private void updateDirtyTiles() {
+        while (hasDirtyTiles()) {
+            for (int level = 1; level <= MAX_LEVEL; level++) {
+                Map<OverviewTile, Float> changed = dirty.get(level - 1);
+                for (OverviewTile tile : List.copyOf(changed.keySet())) {
+                    Float nativeScale = changed.remove(tile);
+                    if (nativeScale == null) {
+                        continue;
+                    }
+                    try {
+                        if (compose(tile, nativeScale) && level < MAX_LEVEL) {
+                            dirty.get(level).put(tile.parent(), nativeScale);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        LOGGER.atSevere().log("Failed to update overview tile " + tile, e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return false if none of the tiles below exist
+     */
+    private boolean compose(OverviewTile tile, float nativeScale) throws IOException {
+        int half = TILE_SIZE / 2;
+        // The amount of chunks per axis in a quarter of the tile and their size in it
+        int chunks = 1 << (tile.level() - 1);
+        int chunkSize = half / chunks;
+        int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+        boolean any = false;
+        for (int dz = 0; dz < 2; dz++) {
+            for (int dx = 0; dx < 2; dx++) {
+                int childX = tile.x() * 2 + dx;
+                int childZ = tile.z() * 2 + dz;
+                MapImage child = tile.level() == 1
+                        ? diskCache.readStoredImage(tile.world(), childX, childZ, nativeScale)
+                        : read(new OverviewTile(tile.world(), tile.level() - 1, childX, childZ));
+                if (child == null || child.data == null) {
+                    continue;
+                }
+
+                int[] scaled = TileScaler.scale(child.data, child.width, child.height, half, half);
+                for (int row = 0; row < half; row++) {
+                    System.arraycopy(scaled, row * half, pixels, (dz * half + row) * TILE_SIZE + dx * half, half);
+                }
+                if (tile.level() > 1) {
+                    // Rescaling makes every pixel opaque, chunks that were transparent in the child stay transparent
+                    for (int cz = 0; cz < chunks; cz++) {
+                        for (int cx = 0; cx < chunks; cx++) {
+                            if ((child.data[cz * chunkSize * 2 * child.width + cx * chunkSize * 2] & 0xFF) == 0) {
+                                for (int row = 0; row < chunkSize; row++) {
+                                    int offset = (dz * half + cz * chunkSize + row) * TILE_SIZE + dx * half + cx * chunkSize;
+                                    Arrays.fill(pixels, offset, offset + chunkSize, 0);
+                                }
+                            }
+                        }
+                    }
+                }
+                any = true;
+            }
+        }
+        if (!any) {
+            return false;
+        }
+
+        MapImage mapImage = new MapImage(TILE_SIZE, TILE_SIZE, pixels);
+        diskCache.getOverviewArchive(tile.world(), tile.level(), tile.x(), tile.z())
+                .write(ExploredRegion.localIndex(tile.x(), tile.z()), WorldMapDiskCache.encode(mapImage));
+        diskCache.getMemoryCache().refresh(getCacheName(tile.world()), ChunkUtil.indexChunk(tile.x(), tile.z()), tile.level(), mapImage);
+        return true;
+    }
+
+    /**
+     * Waits for a running update and composites the tiles that are still outdated
+     */
+    void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                LOGGER.atWarning().log("Timed out while waiting for the overview tiles");
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        update();
+    }
+
+    /**
+     * Cuts the tile of a chunk out of the overview tile containing it
+     *
+     * @return the tile or null if the chunk was not stored when the overview tile was composited
+     */
+    @Nullable
+    MapImage readSlice(String world, int chunkX, int chunkZ, int level) throws IOException {
+        MapImage overview = read(new OverviewTile(world, level, chunkX >> level, chunkZ >> level));
+        if (overview == null) {
+            return null;
+        }
+
+        int size = TILE_SIZE >> level;
+        int mask = (1 << level) - 1;
+        int offset = (chunkZ & mask) * size * TILE_SIZE + (chunkX & mask) * size;
+        if ((overview.data[offset] & 0xFF) == 0) {
+            return null;
+        }
+        int[] pixels = new int[size * size];
+        for (int row = 0; row < size; row++) {
+            System.arraycopy(overview.data, offset + row * TILE_SIZE, pixels, row * size, size);
+        }
+        return new MapImage(size, size, pixels);
+    }
+
+    @Nullable
+    private MapImage read(OverviewTile tile) throws IOException {
+        String cacheName = getCacheName(tile.world());
+        long index = ChunkUtil.indexChunk(tile.x(), tile.z());
+        MapImage cached = diskCache.getMemoryCache().get(cacheName, index, tile.level());
+        if (cached != null) {
+            return cached;
+        }
+
+        byte[] payload = diskCache.getOverviewArchive(tile.world(), tile.level(), tile.x(), tile.z())
+                .read(ExploredRegion.localIndex(tile.x(), tile.z()));
+        if (payload == null) {
+            return null;
+        }
+        MapImage mapImage = WorldMapDiskCache.decode(payload);
+        if (mapImage.data == null || mapImage.width != TILE_SIZE || mapImage.height != TILE_SIZE) {
+            throw new IOException("Invalid overview tile " + tile);
+        }
+        return diskCache.getMemoryCache().put(cacheName, index, tile.level(), mapImage);
+    }
+
+    /**
+     * Overview tiles share the memory cache with the chunk tiles, they are cached under their own name per world
+     * with the level as the scale
+     */
+    private static String getCacheName(String world) {
+        return world + "#overview";
+    }
+
+    record OverviewTile(String world, int level, int x, int z) {
+        OverviewTile parent() {
+            return new OverviewTile(world, level + 1, x >> 1, z >> 1);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package dev.cerus.explorersmap.map;
+
+import com.hypixel.hytale.protocol.packets.worldmap.MapImage;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+
+/**
+ * The format of older versions, only used to read their tiles and to export tiles as images
+ */
+final class PngTileCodec implements TileCodec {
+
+    @Override
+    public byte getId() {
+        return 0;
+    }
+
+    @Override
+    public void encode(MapImage mapImage, ByteArrayOutputStream out) throws IOException {
+        BufferedImage image = new BufferedImage(mapImage.width, mapImage.height, BufferedImage.TYPE_INT_ARGB);
+        for (int x = 0; x < mapImage.width; x++) {
+            for (int z = 0; z < mapImage.height; z++) {
+                int color = mapImage.data[x * mapImage.width + z];
+                int r = color >> 24 & 0xFF;
+                int g = color >> 16 & 0xFF;
+                int b = color >> 8 & 0xFF;
+                int a = color >> 0 & 0xFF;
+
+                image.setRGB(x, z, ((a & 0xFF) << 24) | ((r & 0xFF) << 16) | ((g & 0xFF) << 8) | ((b & 0xFF) << 0));
+            }
+        }
+        ImageIO.write(image, "png", out);
+    }
+
+    @Override
+    public MapImage decode(byte[] payload, int offset, int length) throws IOException {
+        BufferedImage img = ImageIO.read(new ByteArrayInputStream(payload, offset, length));
+        if (img == null) {
+            throw new IOException("Invalid PNG tile");
+        }
+
+        MapImage mapImage = new MapImage(img.getWidth(), img.getHeight(), new int[img.getWidth() * img.getHeight()]);
+        for (int x = 0; x < img.getWidth(); x++) {
+            for (int y = 0; y < img.getHeight(); y++) {
+                int rgb = img.getRGB(x, y);
+                mapImage.data[x * mapImage.width + y] = (((rgb >> 16) & 0xFF) & 255) << 24 | (((rgb >> 8) & 0xFF) & 255) << 16 | ((rgb & 0xFF) & 255) << 8 | (((rgb >> 24) & 0xFF) & 255);
+            }
+        }
+        return mapImage;
+    }
+}
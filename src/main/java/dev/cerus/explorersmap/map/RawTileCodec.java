@@ -0,0 +1,121 @@
+package dev.cerus.explorersmap.map;
+
+import com.hypixel.hytale.protocol.packets.worldmap.MapImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Stores the pixels in the RGBA layout of {@link MapImage#data}, so no color conversion is needed
+ * <p>
+ * Each pixel is stored as the difference to the previous one before it is deflated. Map tiles have large areas of
+ * the same color, which turn into runs of zeros that compress well. Deflaters, inflaters and byte buffers are reused
+ * per thread; the decoded pixels are not pooled because the array ends up in the map packet.
+ */
+final class RawTileCodec implements TileCodec {
+
+    // The tile size of the BEST resolution, larger sizes in a stored tile mean it is corrupted
+    private static final int MAX_SIZE = 96;
+    // Deflate never compresses better than this
+    private static final int MAX_DEFLATE_RATIO = 1032;
+
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    @Override
+    public byte getId() {
+        return 1;
+    }
+
+    @Override
+    public void encode(MapImage mapImage, ByteArrayOutputStream out) throws IOException {
+        if (mapImage.width > MAX_SIZE || mapImage.height > MAX_SIZE) {
+            throw new IOException("Tile is too large: " + mapImage.width + "x" + mapImage.height);
+        }
+        int pixels = mapImage.width * mapImage.height;
+        Scratch scratch = SCRATCH.get();
+        ByteBuffer raw = scratch.raw(pixels * Integer.BYTES);
+        int previous = 0;
+        for (int i = 0; i < pixels; i++) {
+            int color = mapImage.data[i];
+            raw.putInt(i << 2, color - previous);
+            previous = color;
+        }
+
+        out.write(mapImage.width >>> 8);
+        out.write(mapImage.width);
+        out.write(mapImage.height >>> 8);
+        out.write(mapImage.height);
+
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(raw.array(), 0, pixels * Integer.BYTES);
+        deflater.finish();
+        byte[] chunk = scratch.chunk;
+        while (!deflater.finished()) {
+            int len = deflater.deflate(chunk);
+            out.write(chunk, 0, len);
+        }
+    }
+
+    @Override
+    public MapImage decode(byte[] payload, int offset, int length) throws IOException {
+        if (length < 4) {
+            throw new IOException("Truncated tile");
+        }
+        int width = (payload[offset] & 0xFF) << 8 | (payload[offset + 1] & 0xFF);
+        int height = (payload[offset + 2] & 0xFF) << 8 | (payload[offset + 3] & 0xFF);
+        int pixels = width * height;
+        // Checked before allocating, a corrupted size must not run out of memory
+        if (width == 0 || height == 0 || width > MAX_SIZE || height > MAX_SIZE) {
+            throw new IOException("Invalid tile size " + width + "x" + height);
+        }
+        if (pixels * Integer.BYTES / MAX_DEFLATE_RATIO > length - 4) {
+            throw new IOException("Truncated tile, " + (length - 4) + " bytes can't hold " + width + "x" + height + " pixels");
+        }
+
+        ByteBuffer raw = SCRATCH.get().raw(pixels * Integer.BYTES);
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(payload, offset + 4, length - 4);
+        int inflated = 0;
+        try {
+            while (inflated < pixels * Integer.BYTES) {
+                int len = inflater.inflate(raw.array(), inflated, pixels * Integer.BYTES - inflated);
+                if (len == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += len;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted tile", e);
+        }
+        if (inflated != pixels * Integer.BYTES) {
+            throw new IOException("Truncated tile, expected " + pixels * Integer.BYTES + " bytes but got " + inflated);
+        }
+
+        int[] data = new int[pixels];
+        int color = 0;
+        for (int i = 0; i < pixels; i++) {
+            color += raw.getInt(i << 2);
+            data[i] = color;
+        }
+        return new MapImage(width, height, data);
+    }
+
+    private static final class Scratch {
+        private final byte[] chunk = new byte[8192];
+        private ByteBuffer raw = ByteBuffer.allocate(0);
+
+        private ByteBuffer raw(int capacity) {
+            if (raw.capacity() < capacity) {
+                raw = ByteBuffer.allocate(capacity);
+            }
+            return raw;
+        }
+    }
+}
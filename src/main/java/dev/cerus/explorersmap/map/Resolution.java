@@ -3,6 +3,7 @@ package dev.cerus.explorersmap.map;
 import com.hypixel.hytale.protocol.packets.worldmap.MapImage;
 import java.awt.Image;
 import java.awt.image.BufferedImage;
+import java.util.List;
 
 public interface Resolution {
     Resolution BEST = new ResolutionImpl(96, "BEST");
@@ -10,6 +11,10 @@ public interface Resolution {
     Resolution FAST = new ResolutionImpl(16, "FAST");
     Resolution FASTER = new ResolutionImpl(8, "FASTER");
     Resolution FASTEST = new ResolutionImpl(4, "FASTEST");
+    /**
+     * All resolutions, from the highest to the lowest
+     */
+    List<Resolution> LEVELS = List.of(BEST, GOOD, FAST, FASTER, FASTEST);
 
     BufferedImage rescale(BufferedImage tile);
 
@@ -42,28 +47,7 @@ public interface Resolution {
                 return tile;
             }
 
-            BufferedImage tileImg = new BufferedImage(tile.width, tile.height, BufferedImage.TYPE_INT_ARGB);
-            for (int x = 0; x < tile.width; x++) {
-                for (int z = 0; z < tile.height; z++) {
-                    int color = tile.data[x * tile.width + z];
-                    int r = color >> 24 & 0xFF;
-                    int g = color >> 16 & 0xFF;
-                    int b = color >> 8 & 0xFF;
-                    int a = color >> 0 & 0xFF;
-
-                    tileImg.setRGB(x, z, ((a & 0xFF) << 24) | ((r & 0xFF) << 16) | ((g & 0xFF) << 8) | ((b & 0xFF) << 0));
-                }
-            }
-            tileImg = rescale(tileImg);
-
-            tile = new MapImage(imageSize, imageSize, new int[imageSize * imageSize]);
-            for (int x = 0; x < tileImg.getWidth(); x++) {
-                for (int y = 0; y < tileImg.getHeight(); y++) {
-                    int rgb = tileImg.getRGB(x, y);
-                    tile.data[x * tile.width + y] = (((rgb >> 16) & 0xFF) & 255) << 24 | (((rgb >> 8) & 0xFF) & 255) << 16 | ((rgb & 0xFF) & 255) << 8 | (((rgb >> 24) & 0xFF) & 255);
-                }
-            }
-            return tile;
+            return new MapImage(imageSize, imageSize, TileScaler.scale(tile.data, tile.width, tile.height, imageSize, imageSize));
         }
 
         @Override
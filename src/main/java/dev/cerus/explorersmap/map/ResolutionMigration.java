@@ -0,0 +1,276 @@
+package dev.cerus.explorersmap.map;
+
+import com.hypixel.hytale.logger.HytaleLogger;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntSupplier;
+import javax.annotation.Nullable;
+
+/**
+ * Renders the stored tiles of all worlds in a new resolution in the background
+ * <p>
+ * Without it, every stored tile is rescaled when a tracker first reads it after the resolution changed, while the
+ * player waits for the map. The job walks all regions on a fork-join pool with a limited amount of threads and renders
+ * the tiles that are missing in the new resolution from the tiles of the native scale. Each thread pauses after a
+ * region to stay within its CPU share, so the job does not take whole cores from the world threads for minutes.
+ * Finished regions are appended to a progress file, so a job that was interrupted by a restart continues where it
+ * stopped.
+ */
+public class ResolutionMigration {
+
+    private static final HytaleLogger LOGGER = HytaleLogger.forEnclosingClass();
+    // Keeps a slow region from stalling the job and its cancellation
+    private static final long MAX_PAUSE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final WorldMapDiskCache diskCache;
+    // The resolution type in the first line, followed by the ids of all finished regions
+    private final Path progressFile;
+    private final IntSupplier threads;
+    private final IntSupplier cpuPercent;
+    private final Object progressLock = new Object();
+    private Job job;
+
+    /**
+     * @param cpuPercent how much of the time each thread may spend rendering, it pauses for the rest
+     */
+    public ResolutionMigration(WorldMapDiskCache diskCache, Path folder, IntSupplier threads, IntSupplier cpuPercent) {
+        this.diskCache = diskCache;
+        this.progressFile = folder.resolve("rerender.progress");
+        this.threads = threads;
+        this.cpuPercent = cpuPercent;
+    }
+
+    /**
+     * Continues a job that was interrupted by a restart
+     */
+    public synchronized void resume(Resolution resolution) {
+        if (!Files.exists(progressFile)) {
+            return;
+        }
+
+        Set<String> done = new HashSet<>();
+        try {
+            List<String> lines = Files.readAllLines(progressFile, StandardCharsets.UTF_8);
+            // The resolution was changed in the config while the server was down, start over
+            if (!lines.isEmpty() && lines.get(0).equals(resolution.getType())) {
+                done.addAll(lines.subList(1, lines.size()));
+            }
+        } catch (IOException e) {
+            LOGGER.atSevere().log("Failed to read the re-render progress, starting over", e);
+        }
+        startJob(resolution, done);
+    }
+
+    /**
+     * Starts rendering all stored tiles in the given resolution, a running job is cancelled
+     */
+    public synchronized void start(Resolution resolution) {
+        startJob(resolution, Set.of());
+    }
+
+    private void startJob(Resolution resolution, Set<String> done) {
+        if (job != null) {
+            job.cancel();
+        }
+        job = new Job(resolution, done, Math.max(1, Math.min(threads.getAsInt(), Runtime.getRuntime().availableProcessors())));
+        job.start();
+    }
+
+    /**
+     * @return the progress of the current or last job, null if there was none since the start
+     */
+    @Nullable
+    public synchronized Progress getProgress() {
+        return job == null ? null : job.progress();
+    }
+
+    /**
+     * Stops the current job, it is continued after the next start
+     */
+    public void shutdown() {
+        Job current;
+        synchronized (this) {
+            current = job;
+        }
+        if (current == null) {
+            return;
+        }
+
+        current.cancel();
+        try {
+            if (!current.pool.awaitTermination(10, TimeUnit.SECONDS)) {
+                LOGGER.atWarning().log("Timed out while waiting for the tile re-render to stop");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final class Job {
+        private final Resolution resolution;
+        private final Set<String> done;
+        private final ForkJoinPool pool;
+        private final AtomicInteger finishedRegions = new AtomicInteger();
+        private final LongAdder renderedTiles = new LongAdder();
+        // -1 while the regions are listed
+        private volatile int totalRegions = -1;
+        private volatile boolean cancelled;
+        private volatile boolean finished;
+
+        private Job(Resolution resolution, Set<String> done, int parallelism) {
+            this.resolution = resolution;
+            this.done = done;
+            this.pool = new ForkJoinPool(parallelism, forkJoinPool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+                thread.setName("ExplorersMap-Rerender-" + thread.getPoolIndex());
+                thread.setDaemon(true);
+                // Players and the world threads come first
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }, null, false);
+        }
+
+        private void start() {
+            CompletableFuture.runAsync(this::run, pool).whenComplete((unused, throwable) -> {
+                pool.shutdown();
+                if (throwable != null) {
+                    LOGGER.atSevere().log("Failed to re-render map tiles", throwable);
+                }
+            });
+        }
+
+        private void run() {
+            List<WorldMapDiskCache.StoredRegion> regions;
+            try {
+                regions = diskCache.listStoredRegions();
+                synchronized (progressLock) {
+                    if (cancelled) {
+                        return;
+                    }
+                    if (done.isEmpty()) {
+                        Files.createDirectories(progressFile.getParent());
+                        Files.writeString(progressFile, resolution.getType() + "\n", StandardCharsets.UTF_8);
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            int total = regions.size();
+            regions.removeIf(region -> done.contains(region.id()));
+            finishedRegions.set(total - regions.size());
+            totalRegions = total;
+            new RegionTask(regions, 0, regions.size()).invoke();
+
+            synchronized (progressLock) {
+                if (cancelled) {
+                    return;
+                }
+                try {
+                    Files.deleteIfExists(progressFile);
+                } catch (IOException e) {
+                    LOGGER.atSevere().log("Failed to delete the re-render progress", e);
+                }
+                finished = true;
+            }
+            LOGGER.atInfo().log("Rendered " + renderedTiles.sum() + " map tiles in " + total + " regions for resolution " + resolution.getType());
+        }
+
+        private void markDone(WorldMapDiskCache.StoredRegion region) {
+            synchronized (progressLock) {
+                if (cancelled) {
+                    return;
+                }
+                try {
+                    Files.writeString(progressFile, region.id() + "\n", StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                } catch (IOException e) {
+                    // The region is rendered again when the job is resumed, which only checks the existing tiles
+                    LOGGER.atSevere().log("Failed to save the re-render progress", e);
+                }
+            }
+        }
+
+        private void cancel() {
+            // Not interrupted, an interrupt would close the archive channels that are shared with the trackers
+            synchronized (progressLock) {
+                cancelled = true;
+            }
+            pool.shutdown();
+        }
+
+        private Progress progress() {
+            return new Progress(resolution.getType(), finishedRegions.get(), totalRegions, renderedTiles.sum(), finished);
+        }
+
+        private final class RegionTask extends RecursiveAction {
+            private final List<WorldMapDiskCache.StoredRegion> regions;
+            private final int from;
+            private final int to;
+
+            private RegionTask(List<WorldMapDiskCache.StoredRegion> regions, int from, int to) {
+                this.regions = regions;
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (cancelled || from >= to) {
+                    return;
+                }
+                if (to - from > 1) {
+                    int middle = (from + to) >>> 1;
+                    invokeAll(new RegionTask(regions, from, middle), new RegionTask(regions, middle, to));
+                    return;
+                }
+
+                WorldMapDiskCache.StoredRegion region = regions.get(from);
+                long start = System.nanoTime();
+                try {
+                    renderedTiles.add(diskCache.rerenderRegion(region, resolution));
+                    markDone(region);
+                } catch (IOException | RuntimeException e) {
+                    // Not marked as done, the region is tried again when the job is resumed
+                    LOGGER.atSevere().log("Failed to re-render the map tiles of " + region.id(), e);
+                }
+                finishedRegions.incrementAndGet();
+                pause(System.nanoTime() - start);
+            }
+
+            /**
+             * Pauses in proportion to the time the region took, read from the config every time so a change applies
+             * to the running job
+             */
+            private void pause(long workNanos) {
+                int percent = Math.max(1, Math.min(cpuPercent.getAsInt(), 100));
+                if (percent == 100 || cancelled) {
+                    return;
+                }
+                LockSupport.parkNanos(Math.min(workNanos * (100 - percent) / percent, MAX_PAUSE_NANOS));
+            }
+        }
+    }
+
+    /**
+     * @param totalRegions the amount of regions with stored tiles, -1 while they are listed
+     */
+    public record Progress(String resolution, int finishedRegions, int totalRegions, long renderedTiles, boolean finished) {
+        public double percent() {
+            return totalRegions <= 0 ? 0 : finishedRegions * 100.0 / totalRegions;
+        }
+    }
+}
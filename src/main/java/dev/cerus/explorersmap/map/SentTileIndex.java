@@ -0,0 +1,185 @@
+package dev.cerus.explorersmap.map;
+
+import com.hypixel.hytale.math.util.ChunkUtil;
+import dev.cerus.explorersmap.storage.ExploredRegion;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import java.util.function.LongConsumer;
+import javax.annotation.Nullable;
+
+/**
+ * The tiles a tracker has sent, as one 256 bit bitmap per 16x16 chunk region, grouped in shards of 16x16 regions
+ * <p>
+ * Only the tracker tick modifies the index. Other threads read the snapshot from {@link #snapshot()}, which the tick
+ * replaces through {@link #publish()}. Published shards and bitmaps are never modified: the first change to a shard or
+ * region after a publish swaps in a modified copy. A publish only copies the shard references, and the first change
+ * to a shard copies the references to its at most 256 regions.
+ */
+final class SentTileIndex {
+
+    private static final int WORDS = ExploredRegion.CHUNKS / Long.SIZE;
+
+    // Shard key to the bitmaps of its regions by region key
+    private final Long2ObjectMap<Long2ObjectMap<long[]>> shards = new Long2ObjectOpenHashMap<>();
+    // Shards whose region map and regions whose bitmap were copied since the last publish and may be modified in place
+    private final LongSet unpublishedShards = new LongOpenHashSet();
+    private final LongSet unpublished = new LongOpenHashSet();
+    private volatile Snapshot snapshot = new Snapshot(Long2ObjectMaps.emptyMap());
+    private int size;
+    private boolean changed;
+
+    boolean contains(long chunkIndex) {
+        long[] bits = get(shards, regionKey(chunkIndex));
+        return bits != null && ExploredRegion.get(bits, localIndex(chunkIndex));
+    }
+
+    /**
+     * @return false if the tile was already marked as sent
+     */
+    boolean add(long chunkIndex) {
+        if (contains(chunkIndex)) {
+            return false;
+        }
+        int localIndex = localIndex(chunkIndex);
+        modifiable(regionKey(chunkIndex))[localIndex >>> 6] |= 1L << localIndex;
+        size++;
+        return true;
+    }
+
+    /**
+     * @return false if the tile was not marked as sent
+     */
+    boolean remove(long chunkIndex) {
+        if (!contains(chunkIndex)) {
+            return false;
+        }
+        long regionKey = regionKey(chunkIndex);
+        int localIndex = localIndex(chunkIndex);
+        long[] bits = modifiable(regionKey);
+        bits[localIndex >>> 6] &= ~(1L << localIndex);
+        size--;
+        if (isEmpty(bits)) {
+            long shardKey = shardKey(regionKey);
+            Long2ObjectMap<long[]> shard = shards.get(shardKey);
+            shard.remove(regionKey);
+            unpublished.remove(regionKey);
+            if (shard.isEmpty()) {
+                shards.remove(shardKey);
+                unpublishedShards.remove(shardKey);
+            }
+        }
+        return true;
+    }
+
+    void clear() {
+        shards.clear();
+        unpublishedShards.clear();
+        unpublished.clear();
+        size = 0;
+        changed = true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void forEach(LongConsumer consumer) {
+        for (Long2ObjectMap<long[]> shard : shards.values()) {
+            for (Long2ObjectMap.Entry<long[]> entry : Long2ObjectMaps.fastIterable(shard)) {
+                long[] bits = entry.getValue();
+                int baseX = ChunkUtil.xOfChunkIndex(entry.getLongKey()) << 4;
+                int baseZ = ChunkUtil.zOfChunkIndex(entry.getLongKey()) << 4;
+                for (int word = 0; word < WORDS; word++) {
+                    long remaining = bits[word];
+                    while (remaining != 0) {
+                        int localIndex = word * Long.SIZE + Long.numberOfTrailingZeros(remaining);
+                        remaining &= remaining - 1;
+                        consumer.accept(ChunkUtil.indexChunk(baseX + (localIndex & 15), baseZ + (localIndex >>> 4)));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes all changes since the last call visible to {@link #snapshot()}
+     */
+    void publish() {
+        if (!changed) {
+            return;
+        }
+        snapshot = new Snapshot(new Long2ObjectOpenHashMap<>(shards));
+        unpublishedShards.clear();
+        unpublished.clear();
+        changed = false;
+    }
+
+    /**
+     * @return the sent tiles as of the last {@link #publish()}, may be called from any thread
+     */
+    Snapshot snapshot() {
+        return snapshot;
+    }
+
+    private long[] modifiable(long regionKey) {
+        changed = true;
+        long shardKey = shardKey(regionKey);
+        Long2ObjectMap<long[]> shard = shards.get(shardKey);
+        if (unpublishedShards.add(shardKey)) {
+            shard = shard == null ? new Long2ObjectOpenHashMap<>() : new Long2ObjectOpenHashMap<>(shard);
+            shards.put(shardKey, shard);
+        }
+        long[] bits = shard.get(regionKey);
+        if (unpublished.add(regionKey)) {
+            bits = bits == null ? new long[WORDS] : bits.clone();
+            shard.put(regionKey, bits);
+        }
+        return bits;
+    }
+
+    @Nullable
+    private static long[] get(Long2ObjectMap<Long2ObjectMap<long[]>> shards, long regionKey) {
+        Long2ObjectMap<long[]> shard = shards.get(shardKey(regionKey));
+        return shard == null ? null : shard.get(regionKey);
+    }
+
+    private static boolean isEmpty(long[] bits) {
+        for (long word : bits) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long regionKey(long chunkIndex) {
+        return ChunkUtil.indexChunk(ChunkUtil.xOfChunkIndex(chunkIndex) >> 4, ChunkUtil.zOfChunkIndex(chunkIndex) >> 4);
+    }
+
+    private static long shardKey(long regionKey) {
+        return ChunkUtil.indexChunk(ChunkUtil.xOfChunkIndex(regionKey) >> 4, ChunkUtil.zOfChunkIndex(regionKey) >> 4);
+    }
+
+    private static int localIndex(long chunkIndex) {
+        return ExploredRegion.localIndex(ChunkUtil.xOfChunkIndex(chunkIndex), ChunkUtil.zOfChunkIndex(chunkIndex));
+    }
+
+    /**
+     * An immutable view of the sent tiles
+     */
+    static final class Snapshot {
+        private final Long2ObjectMap<Long2ObjectMap<long[]>> shards;
+
+        private Snapshot(Long2ObjectMap<Long2ObjectMap<long[]>> shards) {
+            this.shards = shards;
+        }
+
+        boolean contains(int chunkX, int chunkZ) {
+            long[] bits = get(shards, ChunkUtil.indexChunk(chunkX >> 4, chunkZ >> 4));
+            return bits != null && ExploredRegion.get(bits, ExploredRegion.localIndex(chunkX, chunkZ));
+        }
+    }
+}
@@ -0,0 +1,495 @@
+package dev.cerus.explorersmap.map;
+
+import com.hypixel.hytale.logger.HytaleLogger;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import javax.annotation.Nullable;
+
+/**
+ * All tiles of one 16x16 chunk region at one scale, packed into a single file
+ * <p>
+ * The file starts with a fixed index of 256 entries (offset, length, capacity, hash), one per chunk of the region,
+ * followed by the tile payloads. Payloads are content addressed: tiles with identical payloads, like the ocean tiles
+ * of a region, point at the same slot. A slot is reference counted and becomes garbage once no tile points at it
+ * anymore. A payload that fits into the capacity of its slot is rewritten in place if no other tile uses the slot,
+ * otherwise it is appended. The file is compacted once there is more garbage than live data.
+ * <p>
+ * Reads use positional reads and may run concurrently, writes are exclusive. The channel is opened lazily and can
+ * be closed at any time to free the file handle, the next access opens it again. A bitmap of the stored tiles is
+ * kept in memory after the first access, so looking up missing tiles costs nothing.
+ */
+public final class TileArchive {
+
+    private static final HytaleLogger LOGGER = HytaleLogger.forEnclosingClass();
+
+    public static final String EXTENSION = ".region";
+
+    private static final int MAGIC = 0x454D5441;
+    private static final int VERSION = 2;
+    private static final int TILES = 256;
+    private static final int ENTRY_SIZE = 3 * Integer.BYTES + Long.BYTES;
+    private static final int ENTRIES_OFFSET = 2 * Integer.BYTES;
+    private static final int HEADER_SIZE = ENTRIES_OFFSET + TILES * ENTRY_SIZE;
+    // Slots are rounded up so slightly larger payloads can still be rewritten in place
+    private static final int SLOT_ALIGNMENT = 256;
+    private static final int MIN_COMPACTION_GARBAGE = 64 * 1024;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Path path;
+    // Imports the tiles of older versions when the archive is opened, see WorldMapDiskCache
+    private final LegacyImporter legacyImporter;
+
+    // Which tiles are stored, kept after closing so lookups don't need the file. Null until the archive was opened
+    // once, replaced on change, never modified.
+    private volatile long[] manifest;
+
+    // Guarded by the lock (writes) or this (opening), null while closed
+    private FileChannel channel;
+    // Slots by local index, tiles with the same payload share the same instance
+    private Slot[] slots;
+    private Long2ObjectMap<Slot> byHash;
+    private long end;
+    private long garbage;
+
+    TileArchive(Path path, LegacyImporter legacyImporter) {
+        this.path = path;
+        this.legacyImporter = legacyImporter;
+    }
+
+    /**
+     * @param localIndex the index of the chunk in the region, see {@link dev.cerus.explorersmap.storage.ExploredRegion#localIndex(int, int)}
+     * @return the payload or null if the tile is not stored
+     */
+    @Nullable
+    public byte[] read(int localIndex) throws IOException {
+        lock.readLock().lock();
+        try {
+            if (!open(false) || slots[localIndex] == null) {
+                return null;
+            }
+            return readSlot(slots[localIndex]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean contains(int localIndex) throws IOException {
+        lock.readLock().lock();
+        try {
+            return open(false) && slots[localIndex] != null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return true if it is known which tiles are stored, see {@link #isStored(int)}
+     */
+    public boolean isManifestLoaded() {
+        return manifest != null;
+    }
+
+    /**
+     * Checks whether a tile is stored without touching the file
+     *
+     * @return true if the tile is stored, false if it is not or if the manifest was not loaded yet
+     */
+    public boolean isStored(int localIndex) {
+        long[] current = manifest;
+        return current != null && (current[localIndex >>> 6] & (1L << localIndex)) != 0;
+    }
+
+    public void write(int localIndex, byte[] payload) throws IOException {
+        write(new int[]{localIndex}, new byte[][]{payload});
+    }
+
+    /**
+     * Writes several tiles at once, the archive is only compacted once afterward
+     */
+    public void write(int[] localIndices, byte[][] payloads) throws IOException {
+        write(localIndices, payloads, false);
+    }
+
+    /**
+     * Writes several tiles at once, skipping tiles that are stored already. Used for tiles derived from older data,
+     * which must not replace a tile that was rendered in the meantime.
+     */
+    public void writeMissing(int[] localIndices, byte[][] payloads) throws IOException {
+        write(localIndices, payloads, true);
+    }
+
+    private void write(int[] localIndices, byte[][] payloads, boolean onlyMissing) throws IOException {
+        lock.writeLock().lock();
+        try {
+            open(true);
+            for (int i = 0; i < localIndices.length; i++) {
+                if (!onlyMissing || slots[localIndices[i]] == null) {
+                    write0(localIndices[i], payloads[i]);
+                }
+            }
+            if (garbage > MIN_COMPACTION_GARBAGE && garbage > end - HEADER_SIZE - garbage) {
+                compact();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void write0(int localIndex, byte[] payload) throws IOException {
+        long hash = TileHash.of(payload);
+        Slot current = slots[localIndex];
+        Slot shared = byHash.get(hash);
+        if (shared != null && (shared.length != payload.length || !Arrays.equals(readSlot(shared), payload))) {
+            // Hash collision, the payload gets a slot of its own
+            shared = null;
+        }
+        if (shared != null && shared == current) {
+            return;
+        }
+
+        Slot slot;
+        if (shared != null) {
+            slot = shared;
+            slot.refs++;
+            release(current);
+        } else {
+            if (current != null && current.refs == 1 && payload.length <= current.capacity) {
+                // No other tile references the slot, so it can be rewritten in place
+                unindex(current);
+                slot = current;
+            } else {
+                release(current);
+                slot = new Slot((int) end, align(payload.length));
+                slot.refs = 1;
+                end += slot.capacity;
+            }
+            // The payload is written before the index entry, a crash leaves the old entry intact unless it is rewritten in place
+            writeFully(ByteBuffer.wrap(payload), slot.offset);
+            slot.length = payload.length;
+            slot.hash = hash;
+            byHash.putIfAbsent(hash, slot);
+        }
+
+        slots[localIndex] = slot;
+        if (!isStored(localIndex)) {
+            long[] updated = manifest.clone();
+            updated[localIndex >>> 6] |= 1L << localIndex;
+            manifest = updated;
+        }
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+        putEntry(entry, slot);
+        writeFully(entry.flip(), ENTRIES_OFFSET + (long) localIndex * ENTRY_SIZE);
+    }
+
+    private void release(@Nullable Slot slot) {
+        if (slot != null && --slot.refs == 0) {
+            garbage += slot.capacity;
+            unindex(slot);
+        }
+    }
+
+    private void unindex(Slot slot) {
+        if (byHash.get(slot.hash) == slot) {
+            byHash.remove(slot.hash);
+        }
+    }
+
+    /**
+     * Rewrites the archive without garbage, slots shared by several tiles stay shared
+     */
+    private void compact() throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        Slot[] newSlots = new Slot[TILES];
+        Map<Slot, Slot> moved = new IdentityHashMap<>();
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = HEADER_SIZE;
+            for (int i = 0; i < TILES; i++) {
+                Slot slot = slots[i];
+                if (slot == null) {
+                    continue;
+                }
+                Slot copy = moved.get(slot);
+                if (copy == null) {
+                    copy = new Slot((int) position, align(slot.length));
+                    copy.length = slot.length;
+                    copy.hash = slot.hash;
+                    long copied = 0;
+                    while (copied < slot.length) {
+                        copied += channel.transferTo(slot.offset + copied, slot.length - copied, out.position(position + copied));
+                    }
+                    position += copy.capacity;
+                    moved.put(slot, copy);
+                }
+                newSlots[i] = copy;
+            }
+            ByteBuffer header = encodeHeader(newSlots);
+            while (header.hasRemaining()) {
+                out.write(header, header.position());
+            }
+        }
+
+        channel.close();
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        slots = newSlots;
+        index();
+    }
+
+    /**
+     * Opens the channel if it is closed
+     *
+     * @param create whether to create the file if it does not exist
+     * @return false if the archive does not exist and was not created
+     */
+    private synchronized boolean open(boolean create) throws IOException {
+        if (channel != null) {
+            return true;
+        }
+
+        boolean exists = Files.exists(path);
+        if (!exists && !create && !legacyImporter.hasLegacyTiles(path)) {
+            manifest = new long[TILES / Long.SIZE];
+            return false;
+        }
+
+        boolean opened = false;
+        if (exists) {
+            try {
+                channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                if (readHeader()) {
+                    compact();
+                }
+                opened = true;
+            } catch (IOException e) {
+                if (channel != null) {
+                    channel.close();
+                    channel = null;
+                }
+                // Tiles can be generated again, start over instead of failing forever
+                LOGGER.atSevere().log("Failed to open tile archive " + path + ", discarding it", e);
+                Files.move(path, path.resolveSibling(path.getFileName() + ".corrupt"), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        if (!opened) {
+            Files.createDirectories(path.getParent());
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            slots = new Slot[TILES];
+            index();
+            writeFully(encodeHeader(slots), 0);
+        }
+
+        long[] stored = new long[TILES / Long.SIZE];
+        for (int i = 0; i < TILES; i++) {
+            if (slots[i] != null) {
+                stored[i >>> 6] |= 1L << i;
+            }
+        }
+        manifest = stored;
+
+        // Legacy files are only deleted after they were imported, an interrupted import continues here
+        if (legacyImporter.hasLegacyTiles(path)) {
+            legacyImporter.importLegacyTiles(path, (localIndex, payload) -> {
+                try {
+                    write0(localIndex, payload);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the archive has the format of an older version and needs to be rewritten
+     */
+    private boolean readHeader() throws IOException {
+        ByteBuffer prefix = readFully(0, ENTRIES_OFFSET);
+        if (prefix.getInt() != MAGIC) {
+            throw new IOException("Not a tile archive");
+        }
+        int version = prefix.getInt();
+        if (version != VERSION && version != 1) {
+            throw new IOException("Unsupported tile archive version " + version);
+        }
+
+        // Version 1 entries have no hash
+        boolean outdated = version == 1;
+        int entrySize = outdated ? 3 * Integer.BYTES : ENTRY_SIZE;
+        int headerSize = ENTRIES_OFFSET + TILES * entrySize;
+        ByteBuffer entries = readFully(ENTRIES_OFFSET, TILES * entrySize);
+        slots = new Slot[TILES];
+        Int2ObjectMap<Slot> byOffset = new Int2ObjectOpenHashMap<>();
+        long size = channel.size();
+        for (int i = 0; i < TILES; i++) {
+            int offset = entries.getInt();
+            int length = entries.getInt();
+            int capacity = entries.getInt();
+            long hash = outdated ? 0 : entries.getLong();
+            if (capacity == 0) {
+                continue;
+            }
+            if (length <= 0 || length > capacity || offset < headerSize || (long) offset + length > size) {
+                throw new IOException("Invalid index entry " + i);
+            }
+
+            Slot slot = byOffset.get(offset);
+            if (slot == null) {
+                slot = new Slot(offset, capacity);
+                slot.length = length;
+                slot.hash = hash;
+                byOffset.put(offset, slot);
+            } else if (slot.capacity != capacity || slot.length != length || slot.hash != hash) {
+                throw new IOException("Conflicting index entry " + i);
+            }
+            slots[i] = slot;
+        }
+
+        if (outdated) {
+            // Identical tiles are merged while the hashes are computed, the archive is rewritten afterward
+            Long2ObjectMap<Slot> known = new Long2ObjectOpenHashMap<>();
+            for (int i = 0; i < TILES; i++) {
+                Slot slot = slots[i];
+                if (slot == null) {
+                    continue;
+                }
+                byte[] payload = readSlot(slot);
+                slot.hash = TileHash.of(payload);
+                Slot same = known.get(slot.hash);
+                if (same != null && same.length == slot.length && Arrays.equals(readSlot(same), payload)) {
+                    slots[i] = same;
+                } else {
+                    known.putIfAbsent(slot.hash, slot);
+                }
+            }
+        }
+        index();
+        return outdated;
+    }
+
+    /**
+     * Counts the references of all slots, rebuilds the hash lookup and computes the end of the file and the garbage
+     */
+    private void index() {
+        byHash = new Long2ObjectOpenHashMap<>();
+        end = HEADER_SIZE;
+        long live = 0;
+        for (Slot slot : slots) {
+            if (slot != null) {
+                slot.refs = 0;
+            }
+        }
+        for (Slot slot : slots) {
+            if (slot != null && slot.refs++ == 0) {
+                byHash.putIfAbsent(slot.hash, slot);
+                end = Math.max(end, (long) slot.offset + slot.capacity);
+                live += slot.capacity;
+            }
+        }
+        garbage = end - HEADER_SIZE - live;
+    }
+
+    private static ByteBuffer encodeHeader(Slot[] slots) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION);
+        for (Slot slot : slots) {
+            putEntry(header, slot);
+        }
+        return header.flip();
+    }
+
+    private static void putEntry(ByteBuffer buf, @Nullable Slot slot) {
+        if (slot == null) {
+            buf.putInt(0).putInt(0).putInt(0).putLong(0);
+        } else {
+            buf.putInt(slot.offset).putInt(slot.length).putInt(slot.capacity).putLong(slot.hash);
+        }
+    }
+
+    private byte[] readSlot(Slot slot) throws IOException {
+        return readFully(slot.offset, slot.length).array();
+    }
+
+    private ByteBuffer readFully(long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) == -1) {
+                throw new IOException("Unexpected end of " + path);
+            }
+        }
+        return buf.flip();
+    }
+
+    private void writeFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf, position + buf.position());
+        }
+    }
+
+    private static int align(int length) {
+        return (length + SLOT_ALIGNMENT - 1) / SLOT_ALIGNMENT * SLOT_ALIGNMENT;
+    }
+
+    /**
+     * Closes the file handle, the archive is opened again on the next access
+     */
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            synchronized (this) {
+                if (channel != null) {
+                    channel.close();
+                    channel = null;
+                    slots = null;
+                    byHash = null;
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.atSevere().log("Failed to close tile archive " + path, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    private static final class Slot {
+        private final int offset;
+        private final int capacity;
+        private int length;
+        private long hash;
+        // The amount of tiles pointing at the slot
+        private int refs;
+
+        private Slot(int offset, int capacity) {
+            this.offset = offset;
+            this.capacity = capacity;
+        }
+    }
+
+    interface LegacyImporter {
+        boolean hasLegacyTiles(Path archive);
+
+        /**
+         * Passes every legacy tile of the archive to the consumer and deletes the legacy files afterward
+         */
+        void importLegacyTiles(Path archive, BiConsumer<Integer, byte[]> consumer) throws IOException;
+    }
+}
@@ -0,0 +1,36 @@
+package dev.cerus.explorersmap.map;
+
+import com.hypixel.hytale.protocol.packets.worldmap.MapImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Encodes map tiles for the {@link WorldMapDiskCache}
+ * <p>
+ * Stored tiles start with the id of their codec, so tiles written by different codecs can be mixed in one archive.
+ */
+public interface TileCodec {
+    TileCodec PNG = new PngTileCodec();
+    TileCodec RAW = new RawTileCodec();
+
+    /**
+     * The codec new tiles are written with
+     */
+    TileCodec DEFAULT = RAW;
+
+    static TileCodec byId(int id) throws IOException {
+        if (id == PNG.getId()) {
+            return PNG;
+        }
+        if (id == RAW.getId()) {
+            return RAW;
+        }
+        throw new IOException("Unknown tile codec " + id);
+    }
+
+    byte getId();
+
+    void encode(MapImage mapImage, ByteArrayOutputStream out) throws IOException;
+
+    MapImage decode(byte[] payload, int offset, int length) throws IOException;
+}
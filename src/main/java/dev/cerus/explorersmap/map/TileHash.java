@@ -0,0 +1,53 @@
+package dev.cerus.explorersmap.map;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 64-bit content hashes of tiles, used to find identical tiles on disk and in memory
+ * <p>
+ * Not cryptographic, equal hashes are always confirmed by comparing the contents.
+ */
+final class TileHash {
+
+    private static final long SEED = 0xCBF29CE484222325L;
+    private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private TileHash() {
+    }
+
+    static long of(byte[] data) {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        long h = SEED ^ data.length;
+        while (buf.remaining() >= Long.BYTES) {
+            h = mix(h, buf.getLong());
+        }
+        long tail = 0;
+        while (buf.hasRemaining()) {
+            tail = tail << 8 | (buf.get() & 0xFF);
+        }
+        return finish(mix(h, tail));
+    }
+
+    static long of(int width, int height, int[] pixels) {
+        long h = mix(SEED ^ pixels.length, (long) width << 32 | height);
+        int i = 0;
+        for (; i + 1 < pixels.length; i += 2) {
+            h = mix(h, (long) pixels[i] << 32 | (pixels[i + 1] & 0xFFFFFFFFL));
+        }
+        if (i < pixels.length) {
+            h = mix(h, pixels[i]);
+        }
+        return finish(h);
+    }
+
+    private static long mix(long h, long value) {
+        h ^= value * MULTIPLIER;
+        return Long.rotateLeft(h, 27) * 0xC2B2AE3D27D4EB4FL;
+    }
+
+    private static long finish(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        return h ^ (h >>> 33);
+    }
+}
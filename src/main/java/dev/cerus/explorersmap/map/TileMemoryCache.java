@@ -0,0 +1,186 @@
+package dev.cerus.explorersmap.map;
+
+import com.hypixel.hytale.protocol.packets.worldmap.MapImage;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.annotation.Nullable;
+
+/**
+ * Decoded stored tiles, shared by all trackers of all worlds
+ * <p>
+ * The cached images end up in packets of several players and must not be modified. Identical tiles are interned by
+ * their content hash, so all cached copies of e.g. an ocean tile share one image and its pixels are only counted
+ * once. The least recently used tiles are evicted once the estimated size of all cached tiles exceeds the budget.
+ */
+public class TileMemoryCache {
+
+    // Rough heap usage of an entry besides the pixels: key, map entry and the shared image reference
+    private static final int ENTRY_OVERHEAD = 96;
+    // Rough heap usage of a distinct image besides the pixels: image, array header and the hash entry
+    private static final int IMAGE_OVERHEAD = 96;
+
+    // Access ordered, guarded by itself
+    private final LinkedHashMap<TileKey, SharedImage> tiles = new LinkedHashMap<>(256, 0.75f, true);
+    // Distinct cached images by content hash, guarded by tiles
+    private final Long2ObjectMap<SharedImage> images = new Long2ObjectOpenHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongSupplier budgetBytes;
+    private long bytes;
+
+    public TileMemoryCache(LongSupplier budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    @Nullable
+    public MapImage get(String world, long chunkIndex, float scale) {
+        SharedImage shared;
+        synchronized (tiles) {
+            shared = tiles.get(new TileKey(world, chunkIndex, scale));
+        }
+        (shared != null ? hits : misses).increment();
+        return shared != null ? shared.image : null;
+    }
+
+    /**
+     * Caches a tile
+     *
+     * @return the cached image, which is an identical image that was already cached if there is one
+     */
+    public MapImage put(String world, long chunkIndex, float scale, MapImage mapImage) {
+        long budget = budgetBytes.getAsLong();
+        if (mapImage.data == null || ENTRY_OVERHEAD + sizeOf(mapImage) > budget) {
+            return mapImage;
+        }
+
+        long hash = TileHash.of(mapImage.width, mapImage.height, mapImage.data);
+        synchronized (tiles) {
+            SharedImage shared = images.get(hash);
+            if (shared == null || !shared.matches(mapImage)) {
+                shared = new SharedImage(hash, mapImage);
+                // A hash collision is cached without interning
+                if (images.putIfAbsent(hash, shared) == null) {
+                    shared.interned = true;
+                }
+            }
+            if (shared.refs++ == 0) {
+                bytes += sizeOf(shared.image);
+            }
+            bytes += ENTRY_OVERHEAD;
+
+            SharedImage previous = tiles.put(new TileKey(world, chunkIndex, scale), shared);
+            if (previous != null) {
+                release(previous);
+            }
+            Iterator<SharedImage> iterator = tiles.values().iterator();
+            while (bytes > budget && iterator.hasNext()) {
+                SharedImage evicted = iterator.next();
+                iterator.remove();
+                release(evicted);
+                evictions.increment();
+            }
+            return shared.image;
+        }
+    }
+
+    /**
+     * Returns an identical image that is already cached, so tiles that are sent without being cached can still share
+     * their pixels with cached ones
+     */
+    public MapImage intern(MapImage mapImage) {
+        if (mapImage.data == null) {
+            return mapImage;
+        }
+        long hash = TileHash.of(mapImage.width, mapImage.height, mapImage.data);
+        synchronized (tiles) {
+            SharedImage shared = images.get(hash);
+            return shared != null && shared.matches(mapImage) ? shared.image : mapImage;
+        }
+    }
+
+    /**
+     * Replaces a cached tile that was rendered again, tiles that are not cached stay uncached
+     */
+    public void refresh(String world, long chunkIndex, float scale, MapImage mapImage) {
+        synchronized (tiles) {
+            if (!tiles.containsKey(new TileKey(world, chunkIndex, scale))) {
+                return;
+            }
+        }
+        put(world, chunkIndex, scale, mapImage);
+    }
+
+    public void invalidate(String world, long chunkIndex, float scale) {
+        synchronized (tiles) {
+            SharedImage previous = tiles.remove(new TileKey(world, chunkIndex, scale));
+            if (previous != null) {
+                release(previous);
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (tiles) {
+            tiles.clear();
+            images.clear();
+            bytes = 0;
+        }
+    }
+
+    // Guarded by tiles
+    private void release(SharedImage shared) {
+        bytes -= ENTRY_OVERHEAD;
+        if (--shared.refs == 0) {
+            bytes -= sizeOf(shared.image);
+            if (shared.interned) {
+                images.remove(shared.hash);
+            }
+        }
+    }
+
+    public Stats getStats() {
+        synchronized (tiles) {
+            return new Stats(tiles.size(), images.size(), bytes, budgetBytes.getAsLong(), hits.sum(), misses.sum(), evictions.sum());
+        }
+    }
+
+    private static long sizeOf(MapImage mapImage) {
+        return IMAGE_OVERHEAD + (mapImage.data != null ? (long) mapImage.data.length * Integer.BYTES : 0);
+    }
+
+    private record TileKey(String world, long chunkIndex, float scale) {
+    }
+
+    private static final class SharedImage {
+        private final long hash;
+        private final MapImage image;
+        private boolean interned;
+        // The amount of cache entries using the image
+        private int refs;
+
+        private SharedImage(long hash, MapImage image) {
+            this.hash = hash;
+            this.image = image;
+        }
+
+        private boolean matches(MapImage other) {
+            return image == other || (image.width == other.width && image.height == other.height && Arrays.equals(image.data, other.data));
+        }
+    }
+
+    /**
+     * @param images the amount of distinct images, lower than the amount of entries if identical tiles are cached
+     */
+    public record Stats(int entries, int images, long bytes, long budgetBytes, long hits, long misses, long evictions) {
+        public double hitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package dev.cerus.explorersmap.map;
+
+import java.util.Arrays;
+
+/**
+ * Area-averaging rescaler working directly on the RGBA pixels of map tiles
+ * <p>
+ * Gives the same result as {@link java.awt.Image#SCALE_SMOOTH} drawn onto an opaque image: every target pixel is the
+ * average of the source area it covers, composited over black. Exact integer ratios like 96 to 16 are summed in
+ * blocks, other ratios weigh the source pixels by the covered area. Only the returned array is allocated, the
+ * intermediate sums live in per-thread buffers.
+ */
+final class TileScaler {
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+    // 255 * 255 is the largest premultiplied channel value, block sums up to this many pixels fit into an int
+    private static final int MAX_BLOCK_PIXELS = Integer.MAX_VALUE / (255 * 255);
+
+    private TileScaler() {
+    }
+
+    /**
+     * @param src row-major RGBA pixels
+     * @return the row-major RGBA pixels of the rescaled image, all opaque
+     */
+    static int[] scale(int[] src, int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+        int[] dst = new int[dstWidth * dstHeight];
+        if (srcWidth % dstWidth == 0 && srcHeight % dstHeight == 0
+            && (srcWidth / dstWidth) * (srcHeight / dstHeight) <= MAX_BLOCK_PIXELS) {
+            scaleBlocks(src, srcWidth, srcWidth / dstWidth, srcHeight / dstHeight, dst, dstWidth, dstHeight);
+        } else {
+            scaleWeighted(src, srcWidth, srcHeight, dst, dstWidth, dstHeight);
+        }
+        return dst;
+    }
+
+    private static void scaleBlocks(int[] src, int srcWidth, int blockWidth, int blockHeight, int[] dst, int dstWidth, int dstHeight) {
+        int[] sums = SCRATCH.get().ints(dstWidth * 3);
+        long divisor = 255L * blockWidth * blockHeight;
+        for (int dy = 0; dy < dstHeight; dy++) {
+            Arrays.fill(sums, 0, dstWidth * 3, 0);
+            for (int sy = dy * blockHeight; sy < (dy + 1) * blockHeight; sy++) {
+                int row = sy * srcWidth;
+                for (int dx = 0, sx = 0; dx < dstWidth; dx++) {
+                    int r = 0;
+                    int g = 0;
+                    int b = 0;
+                    for (int end = sx + blockWidth; sx < end; sx++) {
+                        int color = src[row + sx];
+                        int a = color & 0xFF;
+                        r += (color >>> 24) * a;
+                        g += (color >> 16 & 0xFF) * a;
+                        b += (color >> 8 & 0xFF) * a;
+                    }
+                    sums[dx * 3] += r;
+                    sums[dx * 3 + 1] += g;
+                    sums[dx * 3 + 2] += b;
+                }
+            }
+            for (int dx = 0; dx < dstWidth; dx++) {
+                dst[dy * dstWidth + dx] = pack(sums[dx * 3], sums[dx * 3 + 1], sums[dx * 3 + 2], divisor);
+            }
+        }
+    }
+
+    private static void scaleWeighted(int[] src, int srcWidth, int srcHeight, int[] dst, int dstWidth, int dstHeight) {
+        Scratch scratch = SCRATCH.get();
+        int[] xSegments = segments(srcWidth, dstWidth, scratch.xSegments(srcWidth + dstWidth));
+        int[] ySegments = segments(srcHeight, dstHeight, scratch.ySegments(srcHeight + dstHeight));
+        int xCount = xSegments[0];
+        int yCount = ySegments[0];
+
+        // Horizontal pass: premultiplied channels of every source row, weighted into the target columns
+        long[] rows = scratch.longs(srcHeight * dstWidth * 3 + dstWidth * 3);
+        Arrays.fill(rows, 0, srcHeight * dstWidth * 3, 0);
+        for (int sy = 0; sy < srcHeight; sy++) {
+            int row = sy * srcWidth;
+            int out = sy * dstWidth * 3;
+            for (int s = 0; s < xCount; s++) {
+                int color = src[row + xSegments[1 + s * 3]];
+                int dx = xSegments[2 + s * 3];
+                long weight = (long) xSegments[3 + s * 3] * (color & 0xFF);
+                rows[out + dx * 3] += weight * (color >>> 24);
+                rows[out + dx * 3 + 1] += weight * (color >> 16 & 0xFF);
+                rows[out + dx * 3 + 2] += weight * (color >> 8 & 0xFF);
+            }
+        }
+
+        // Vertical pass, the weights of each axis add up to the source size
+        int sumsOffset = srcHeight * dstWidth * 3;
+        long divisor = 255L * srcWidth * srcHeight;
+        int segment = 0;
+        for (int dy = 0; dy < dstHeight; dy++) {
+            Arrays.fill(rows, sumsOffset, sumsOffset + dstWidth * 3, 0);
+            for (; segment < yCount && ySegments[2 + segment * 3] == dy; segment++) {
+                int in = ySegments[1 + segment * 3] * dstWidth * 3;
+                long weight = ySegments[3 + segment * 3];
+                for (int i = 0; i < dstWidth * 3; i++) {
+                    rows[sumsOffset + i] += weight * rows[in + i];
+                }
+            }
+            for (int dx = 0; dx < dstWidth; dx++) {
+                int i = sumsOffset + dx * 3;
+                dst[dy * dstWidth + dx] = pack(rows[i], rows[i + 1], rows[i + 2], divisor);
+            }
+        }
+    }
+
+    /**
+     * Splits an axis into the overlaps of source and target pixels. With the axis measured in units of
+     * {@code 1 / (src * dst)}, a source pixel is {@code dst} units wide and a target pixel {@code src} units.
+     *
+     * @return the amount of segments followed by (source index, target index, overlap) per segment, ordered by target
+     */
+    private static int[] segments(int src, int dst, int[] out) {
+        int count = 0;
+        long position = 0;
+        int s = 0;
+        int d = 0;
+        while (s < src && d < dst) {
+            long srcEnd = (long) (s + 1) * dst;
+            long dstEnd = (long) (d + 1) * src;
+            long end = Math.min(srcEnd, dstEnd);
+            out[1 + count * 3] = s;
+            out[2 + count * 3] = d;
+            out[3 + count * 3] = (int) (end - position);
+            count++;
+            position = end;
+            if (srcEnd == end) {
+                s++;
+            }
+            if (dstEnd == end) {
+                d++;
+            }
+        }
+        out[0] = count;
+        return out;
+    }
+
+    private static int pack(long r, long g, long b, long divisor) {
+        long half = divisor / 2;
+        return (int) ((r + half) / divisor) << 24
+               | (int) ((g + half) / divisor) << 16
+               | (int) ((b + half) / divisor) << 8
+               | 0xFF;
+    }
+
+    private static final class Scratch {
+        private int[] ints = new int[0];
+        private long[] longs = new long[0];
+        private int[] xSegments = new int[0];
+        private int[] ySegments = new int[0];
+
+        private int[] ints(int size) {
+            if (ints.length < size) {
+                ints = new int[size];
+            }
+            return ints;
+        }
+
+        private long[] longs(int size) {
+            if (longs.length < size) {
+                longs = new long[size];
+            }
+            return longs;
+        }
+
+        private int[] xSegments(int count) {
+            if (xSegments.length < 1 + count * 3) {
+                xSegments = new int[1 + count * 3];
+            }
+            return xSegments;
+        }
+
+        private int[] ySegments(int count) {
+            if (ySegments.length < 1 + count * 3) {
+                ySegments = new int[1 + count * 3];
+            }
+            return ySegments;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package dev.cerus.explorersmap.map;
+
+import com.hypixel.hytale.protocol.packets.worldmap.MapChunk;
+import dev.cerus.explorersmap.config.ExplorersMapConfig;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Sends the map tiles of a tracker within a bandwidth budget
+ * <p>
+ * Tiles are queued and sent in packets of limited size, paced by a token bucket that holds up to one second of the
+ * budget. A packet may overdraw the bucket, so tiles bigger than the budget of a tick are still sent and the debt is
+ * paid off on the following ticks. Only used by the tick of its tracker.
+ */
+final class UpdateScheduler {
+
+    // The largest packet the client accepts
+    static final int MAX_PACKET_SIZE = 2621427;
+    // Serialized size of a tile besides the pixels, see the unload packets in CustomWorldMapTracker#reset
+    private static final int CHUNK_OVERHEAD = 23;
+    // How many seconds of the budget may be queued before the tracker stops producing new tiles
+    private static final int MAX_BACKLOG_SECONDS = 2;
+
+    private final ArrayDeque<MapChunk> queue = new ArrayDeque<>();
+    private long queuedBytes;
+    private double tokens;
+
+    void offer(Collection<MapChunk> chunks) {
+        for (MapChunk chunk : chunks) {
+            queue.add(chunk);
+            queuedBytes += sizeOf(chunk);
+        }
+    }
+
+    /**
+     * Sends as many queued tiles as the budget allows
+     *
+     * @param bytesPerSecond the budget, 0 or less for no limit
+     * @param maxPacketSize  the maximum estimated size of a packet in bytes
+     * @param writer         writes a packet with the given tiles
+     */
+    void send(float dt, long bytesPerSecond, int maxPacketSize, Consumer<List<MapChunk>> writer) {
+        boolean unlimited = bytesPerSecond <= 0;
+        if (!unlimited) {
+            tokens = Math.min(bytesPerSecond, tokens + bytesPerSecond * (double) dt);
+        }
+
+        while (!queue.isEmpty() && (unlimited || tokens > 0)) {
+            List<MapChunk> packet = new ArrayList<>();
+            long packetBytes = 0;
+            while (!queue.isEmpty()) {
+                int size = sizeOf(queue.peek());
+                if (!packet.isEmpty() && packetBytes + size > maxPacketSize) {
+                    break;
+                }
+                packet.add(queue.poll());
+                packetBytes += size;
+                if (!unlimited && packetBytes >= tokens) {
+                    break;
+                }
+            }
+            queuedBytes -= packetBytes;
+            tokens -= packetBytes;
+            writer.accept(packet);
+        }
+        if (unlimited) {
+            tokens = 0;
+        }
+    }
+
+    /**
+     * @return whether more than a few seconds of the budget are queued, new tiles would only be sent late
+     */
+    boolean isBacklogged(long bytesPerSecond) {
+        return bytesPerSecond > 0 && queuedBytes > bytesPerSecond * MAX_BACKLOG_SECONDS;
+    }
+
+    /**
+     * Drops the queued tiles and starts over with an empty bucket
+     */
+    void clear() {
+        queue.clear();
+        queuedBytes = 0;
+        tokens = 0;
+    }
+
+    static long getBandwidth(ExplorersMapConfig config) {
+        return config.getMapBandwidthKb() * 1024L;
+    }
+
+    static int getMaxPacketSize(ExplorersMapConfig config) {
+        return (int) Math.min(MAX_PACKET_SIZE, Math.max(1, config.getMaxPacketSizeKb()) * 1024L);
+    }
+
+    private static int sizeOf(MapChunk chunk) {
+        return CHUNK_OVERHEAD + (chunk.image == null || chunk.image.data == null ? 0 : chunk.image.data.length * Integer.BYTES);
+    }
+}
@@ -1,160 +1,741 @@
 package dev.cerus.explorersmap.map;
 
+import com.hypixel.hytale.logger.HytaleLogger;
 import com.hypixel.hytale.math.util.ChunkUtil;
 import com.hypixel.hytale.protocol.packets.worldmap.MapImage;
 import com.hypixel.hytale.server.core.universe.world.World;
-import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
-import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
-import java.awt.image.BufferedImage;
+import dev.cerus.explorersmap.storage.ExploredRegion;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 import javax.annotation.Nullable;
-import javax.imageio.ImageIO;
 
 /**
  * A on-disk cache for world map tiles
+ * <p>
+ * Tiles are stored in one {@link TileArchive} per region and scale at {@code <world>/<rx>.<rz>/scale_<s>.region},
+ * each tile prefixed with the id of its {@link TileCodec}. Identical tiles of a region are stored once. The one PNG
+ * per tile directories of older versions are packed into the archive when it is first accessed. The
+ * {@link OverviewPyramid} tiles are stored at {@code <world>/overview_<level>/<x>.<z>.region} with 16x16 tiles per
+ * archive.
  */
 public class WorldMapDiskCache {
 
-    private final Map<String, Long2ObjectMap<CompletableFuture<MapImage>>> loadingImages = new HashMap<>();
+    private static final HytaleLogger LOGGER = HytaleLogger.forEnclosingClass();
+
+    private static final int MAX_OPEN_ARCHIVES = 256;
+    private static final int IO_THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    private static final int IO_QUEUE_CAPACITY = 4096;
+    // Reads are refused earlier than saves, so a burst of reads can't cause tiles to be lost
+    private static final int MAX_QUEUED_READS = IO_QUEUE_CAPACITY / 4;
+    private static final int MAX_IN_FLIGHT_READS = 2048;
+    private static final long FLUSH_DELAY_MS = 2000;
+    // Flush right away once this many tiles are queued
+    private static final int MAX_PENDING_TILES = 2048;
+    // Tiles are dropped after this many failed writes, they are generated again when they are needed
+    private static final int MAX_WRITE_ATTEMPTS = 3;
+    private static final Pattern LEGACY_TILE_PATTERN = Pattern.compile("(-?\\d+)\\.(-?\\d+)\\.png");
+    private static final Pattern REGION_DIRECTORY_PATTERN = Pattern.compile("(-?\\d+)\\.(-?\\d+)");
+    // Archives and the tile directories of older versions
+    private static final Pattern SCALE_PATTERN = Pattern.compile("scale_(\\d+(?:\\.\\d+)?)(?:" + Pattern.quote(TileArchive.EXTENSION) + ")?");
+
+    // Reads that are queued or running, removed once they are done
+    private final Map<TileKey, InFlightRead> inFlightReads = new ConcurrentHashMap<>();
+    private final LongAdder rejectedReads = new LongAdder();
+    private final LongAdder cancelledReads = new LongAdder();
+    // Write-behind queue, only the newest version of a tile is kept. Tiles are removed after they were written.
+    private final Map<TileKey, PendingTile> pendingTiles = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    // Set while a flush started by a full queue runs, the tiles queued in the meantime are written by the next one
+    private final AtomicBoolean sizeFlushRunning = new AtomicBoolean();
+    // Archives are never removed so there is only one instance per file, a closed archive is tiny
+    private final Map<ArchiveKey, TileArchive> archives = new ConcurrentHashMap<>();
+    // Same as archives, keyed by the level instead of the scale
+    private final Map<ArchiveKey, TileArchive> overviewArchives = new ConcurrentHashMap<>();
+    // Access ordered, the least recently used archive is closed when too many are open
+    private final Map<TileArchive, Boolean> openArchives = new LinkedHashMap<>(16, 0.75f, true);
+    private final TileArchive.LegacyImporter legacyImporter = new PngDirectoryImporter();
 
     private final Path folder;
+    private final TileMemoryCache memoryCache;
+    private final ThreadPoolExecutor ioExecutor = createIoExecutor();
+    private final OverviewPyramid overviews = new OverviewPyramid(this);
 
-    public WorldMapDiskCache(Path folder) {
+    public WorldMapDiskCache(Path folder, TileMemoryCache memoryCache) {
         this.folder = folder;
+        this.memoryCache = memoryCache;
     }
 
+    /**
+     * Cancels all reads of the world, the trackers are reset afterward and request what they still need
+     */
     public void clearCache(World world) {
-        this.loadingImages.remove(CustomWorldMapTracker.sanitizeWorldName(world));
-    }
-
-    public CompletableFuture<Void> saveImageToDiskAsync(World world, int chunkX, int chunkZ, float scale, @Nullable Resolution resolution, MapImage mapImage) {
-        return CompletableFuture.runAsync(() -> {
-            try {
-                saveImageToDisk(CustomWorldMapTracker.sanitizeWorldName(world), chunkX, chunkZ, scale, mapImage);
-                if (resolution != null && resolution.getScale() != scale) {
-                    saveImageToDisk(CustomWorldMapTracker.sanitizeWorldName(world), chunkX, chunkZ, resolution.getScale(), resolution.rescale(mapImage));
-                }
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+        String worldName = CustomWorldMapTracker.sanitizeWorldName(world);
+        inFlightReads.forEach((key, read) -> {
+            if (key.world().equals(worldName)) {
+                read.result.cancel(false);
             }
-        }, world);
+        });
     }
 
-    public void saveImageToDisk(String world, int chunkX, int chunkZ, float scale, MapImage mapImage) throws IOException {
+    /**
+     * Queues a tile to be saved. Tiles are written in batches per region file shortly after, a tile that is queued
+     * again before that is only written once. Copies of the tile that were saved in the other resolutions, like the
+     * ones read in level of detail mode, are replaced as well.
+     *
+     * @param resolution a resolution to additionally save the tile in, the rescaling is done on the I/O threads
+     */
+    public void queueImageSave(World world, int chunkX, int chunkZ, float scale, @Nullable Resolution resolution, MapImage mapImage) {
         if (mapImage.data == null) {
             return;
         }
 
-        Path path = getImagePath(world, chunkX, chunkZ, scale);
-        Files.createDirectories(path.getParent());
+        String worldName = CustomWorldMapTracker.sanitizeWorldName(world);
+        long index = ChunkUtil.indexChunk(chunkX, chunkZ);
+        queue(new TileKey(worldName, index, scale), new PendingTile(mapImage, null));
+        if (resolution != null && resolution.getScale() != scale) {
+            queue(new TileKey(worldName, index, resolution.getScale()), new PendingTile(mapImage, resolution));
+        }
+        for (Resolution level : Resolution.LEVELS) {
+            if (level.getScale() != scale && (resolution == null || level.getScale() != resolution.getScale())) {
+                queue(new TileKey(worldName, index, level.getScale()), new PendingTile(mapImage, level, true));
+            }
+        }
 
-        BufferedImage image = new BufferedImage(mapImage.width, mapImage.height, BufferedImage.TYPE_INT_ARGB);
-        for (int x = 0; x < mapImage.width; x++) {
-            for (int z = 0; z < mapImage.height; z++) {
-                int color = mapImage.data[x * mapImage.width + z];
-                int r = color >> 24 & 0xFF;
-                int g = color >> 16 & 0xFF;
-                int b = color >> 8 & 0xFF;
-                int a = color >> 0 & 0xFF;
+        if (pendingTiles.size() >= MAX_PENDING_TILES) {
+            if (sizeFlushRunning.compareAndSet(false, true)) {
+                flush(null).whenComplete((unused, throwable) -> sizeFlushRunning.set(false));
+            }
+        } else {
+            scheduleFlush();
+        }
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            CompletableFuture.delayedExecutor(FLUSH_DELAY_MS, TimeUnit.MILLISECONDS).execute(() -> {
+                flushScheduled.set(false);
+                flush(null);
+            });
+        }
+    }
 
-                image.setRGB(x, z, ((a & 0xFF) << 24) | ((r & 0xFF) << 16) | ((g & 0xFF) << 8) | ((b & 0xFF) << 0));
+    private void queue(TileKey key, PendingTile tile) {
+        pendingTiles.put(key, tile);
+        // Don't serve the previous version from memory until the new one is written
+        memoryCache.invalidate(key.world(), key.chunkIndex(), key.scale());
+    }
+
+    /**
+     * Writes all queued tiles of a world, or of all worlds if null, on the I/O threads
+     */
+    public CompletableFuture<Void> flush(@Nullable String world) {
+        Map<ArchiveKey, List<Map.Entry<TileKey, PendingTile>>> batches = new HashMap<>();
+        for (Map.Entry<TileKey, PendingTile> entry : pendingTiles.entrySet()) {
+            TileKey key = entry.getKey();
+            PendingTile tile = entry.getValue();
+            if ((world != null && !world.equals(key.world())) || tile.queued) {
+                continue;
+            }
+            tile.queued = true;
+            batches.computeIfAbsent(key.archiveKey(), k -> new ArrayList<>()).add(entry);
+        }
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>(batches.size());
+        for (List<Map.Entry<TileKey, PendingTile>> batch : batches.values()) {
+            CompletableFuture<Void> future;
+            try {
+                future = CompletableFuture.runAsync(() -> writeBatch(batch), ioExecutor);
+            } catch (RejectedExecutionException e) {
+                // Stays queued for the next flush
+                batch.forEach(entry -> entry.getValue().queued = false);
+                continue;
+            }
+            futures.add(future.whenComplete((unused, throwable) -> {
+                if (throwable != null) {
+                    LOGGER.atSevere().log("Failed to save map tiles", throwable);
+                    // The memory cache no longer holds the tiles, so they stay queued for another attempt
+                    for (Map.Entry<TileKey, PendingTile> entry : batch) {
+                        PendingTile tile = entry.getValue();
+                        if (++tile.failedWrites >= MAX_WRITE_ATTEMPTS) {
+                            pendingTiles.remove(entry.getKey(), tile);
+                        } else {
+                            tile.queued = false;
+                        }
+                    }
+                    scheduleFlush();
+                }
+            }));
+        }
+        return CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * Writes queued tiles of one region file
+     */
+    private void writeBatch(List<Map.Entry<TileKey, PendingTile>> batch) {
+        TileKey first = batch.get(0).getKey();
+        int[] localIndices = new int[batch.size()];
+        byte[][] payloads = new byte[batch.size()][];
+        int count = 0;
+        try {
+            TileArchive archive = getArchive(first.world(), ChunkUtil.xOfChunkIndex(first.chunkIndex()), ChunkUtil.zOfChunkIndex(first.chunkIndex()), first.scale());
+            for (Map.Entry<TileKey, PendingTile> entry : batch) {
+                long chunkIndex = entry.getKey().chunkIndex();
+                int localIndex = ExploredRegion.localIndex(ChunkUtil.xOfChunkIndex(chunkIndex), ChunkUtil.zOfChunkIndex(chunkIndex));
+                // Copies in other resolutions are only saved once a tracker reads them
+                if (entry.getValue().replaceOnly && !archive.contains(localIndex)) {
+                    continue;
+                }
+                localIndices[count] = localIndex;
+                payloads[count++] = encode(entry.getValue().image());
+            }
+            if (count > 0) {
+                archive.write(Arrays.copyOf(localIndices, count), Arrays.copyOf(payloads, count));
             }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
 
-        try (OutputStream os = Files.newOutputStream(path, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
-            ImageIO.write(image, "png", os);
+        boolean nativeTiles = false;
+        for (Map.Entry<TileKey, PendingTile> entry : batch) {
+            TileKey key = entry.getKey();
+            // Only native tiles feed the overviews, tiles in another resolution are rescaled copies of them
+            if (entry.getValue().resolution == null) {
+                overviews.markChanged(key.world(), ChunkUtil.xOfChunkIndex(key.chunkIndex()), ChunkUtil.zOfChunkIndex(key.chunkIndex()), key.scale());
+                nativeTiles = true;
+            }
+            // A newer version that was queued in the meantime stays queued
+            if (pendingTiles.remove(key, entry.getValue())) {
+                memoryCache.refresh(key.world(), key.chunkIndex(), key.scale(), entry.getValue().image());
+            }
+        }
+        if (nativeTiles) {
+            overviews.scheduleUpdate();
         }
     }
 
+    static byte[] encode(MapImage mapImage) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(TileCodec.DEFAULT.getId());
+        TileCodec.DEFAULT.encode(mapImage, out);
+        return out.toByteArray();
+    }
+
+    static MapImage decode(byte[] payload) throws IOException {
+        return TileCodec.byId(payload[0]).decode(payload, 1, payload.length - 1);
+    }
+
+    public void saveImageToDisk(String world, int chunkX, int chunkZ, float scale, MapImage mapImage) throws IOException {
+        if (mapImage.data == null) {
+            return;
+        }
+
+        getArchive(world, chunkX, chunkZ, scale).write(ExploredRegion.localIndex(chunkX, chunkZ), encode(mapImage));
+        memoryCache.refresh(world, ChunkUtil.indexChunk(chunkX, chunkZ), scale, mapImage);
+    }
+
+    /**
+     * Reads a stored tile in the given resolution. Tiles that are missing in the resolution are cut out of an
+     * {@link OverviewPyramid overview tile} if the resolution has one, or rescaled from the tile of the native scale.
+     * <p>
+     * Concurrent requests for the same tile share one read. Every caller gets its own future, cancelling it tells the
+     * cache that the tile is no longer needed. The read itself is cancelled once no caller needs it anymore.
+     *
+     * @return the future or null if too many reads are in flight, the caller should try again later
+     */
+    @Nullable
     public CompletableFuture<MapImage> readStoredImageAsync(World world, int chunkX, int chunkZ, float scale, Resolution resolution) {
         String worldName = CustomWorldMapTracker.sanitizeWorldName(world);
 
-        Long2ObjectMap<CompletableFuture<MapImage>> cache = loadingImages.computeIfAbsent(worldName, o -> new Long2ObjectOpenHashMap<>());
         long index = ChunkUtil.indexChunk(chunkX, chunkZ);
-        CompletableFuture<MapImage> future = cache.get(index);
-        if (future != null) {
-            if (future.isDone()) {
-                cache.remove(index);
-            }
-            return future;
+        MapImage cached = memoryCache.get(worldName, index, resolution.getScale());
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
         }
 
-        if (Files.exists(getImagePath(worldName, chunkX, chunkZ, resolution.getScale()))) {
-            future = readStoredImageAsync(world, chunkX, chunkZ, resolution.getScale());
-        } else if (Files.exists(getImagePath(worldName, chunkX, chunkZ, scale))) {
-            future = readStoredImageAsync(world, chunkX, chunkZ, scale).thenApply(mapImage -> {
-                MapImage rescaled = resolution.rescale(mapImage);
-                saveImageToDiskAsync(world, chunkX, chunkZ, resolution.getScale(), null, rescaled);
-                return rescaled;
-            });
-        } else {
+        // Tiles that are known to be missing don't need a trip to the I/O threads
+        if (isKnownMissing(worldName, chunkX, chunkZ, resolution.getScale())
+            && (resolution.getScale() == scale || isKnownMissing(worldName, chunkX, chunkZ, scale))) {
             return CompletableFuture.completedFuture(null);
         }
 
-        cache.put(index, future);
-        return future;
+        // The first lookup in a region loads the manifest from the archive index, so it is done off the tick
+        return requestRead(new TileKey(worldName, index, resolution.getScale()), () -> {
+            try {
+                MapImage mapImage = readStoredImage(worldName, chunkX, chunkZ, resolution.getScale());
+                int level = OverviewPyramid.getLevel(resolution);
+                if (mapImage == null && level > 0 && resolution.getScale() != scale) {
+                    // Not saved, the overview tile is already cached for the neighboring chunks
+                    mapImage = overviews.readSlice(worldName, chunkX, chunkZ, level);
+                }
+                if (mapImage == null && resolution.getScale() != scale) {
+                    mapImage = readStoredImage(worldName, chunkX, chunkZ, scale);
+                    if (mapImage != null && level > 0) {
+                        // Stored before the overview tiles existed, the next reads of the area are served by them
+                        overviews.markChanged(worldName, chunkX, chunkZ, scale);
+                        overviews.scheduleUpdate();
+                    }
+                    if (mapImage != null) {
+                        mapImage = resolution.rescale(mapImage);
+                        // Written with the next batch of the region instead of blocking the read on the archive. A
+                        // tile queued in the meantime is newer and wins.
+                        if (pendingTiles.putIfAbsent(new TileKey(worldName, index, resolution.getScale()), new PendingTile(mapImage, null)) == null) {
+                            scheduleFlush();
+                        }
+                    }
+                }
+                if (mapImage != null) {
+                    mapImage = memoryCache.put(worldName, index, resolution.getScale(), mapImage);
+                }
+                return mapImage;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
     }
 
+    /**
+     * Reads a stored tile of the given scale, see {@link #readStoredImageAsync(World, int, int, float, Resolution)}
+     */
+    @Nullable
     public CompletableFuture<MapImage> readStoredImageAsync(World world, int chunkX, int chunkZ, float scale) {
         String worldName = CustomWorldMapTracker.sanitizeWorldName(world);
-        if (!Files.exists(getImagePath(worldName, chunkX, chunkZ, scale))) {
+        if (isKnownMissing(worldName, chunkX, chunkZ, scale)) {
             return CompletableFuture.completedFuture(null);
         }
 
-        Long2ObjectMap<CompletableFuture<MapImage>> cache = loadingImages.computeIfAbsent(worldName, o -> new Long2ObjectOpenHashMap<>());
-        long index = ChunkUtil.indexChunk(chunkX, chunkZ);
-        CompletableFuture<MapImage> future = cache.get(index);
-        if (future != null) {
-            if (future.isDone()) {
-                cache.remove(index);
-            }
-            return future;
-        }
-
-        future = CompletableFuture.supplyAsync(() -> {
+        return requestRead(new TileKey(worldName, ChunkUtil.indexChunk(chunkX, chunkZ), scale), () -> {
             try {
                 return readStoredImage(worldName, chunkX, chunkZ, scale);
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
-        }, world);
-        cache.put(index, future);
-        return future;
+        });
+    }
+
+    @Nullable
+    private CompletableFuture<MapImage> requestRead(TileKey key, Supplier<MapImage> supplier) {
+        while (true) {
+            InFlightRead read = inFlightReads.get(key);
+            if (read == null) {
+                if (inFlightReads.size() >= MAX_IN_FLIGHT_READS || ioExecutor.getQueue().size() >= MAX_QUEUED_READS) {
+                    rejectedReads.increment();
+                    return null;
+                }
+                InFlightRead created = new InFlightRead();
+                read = inFlightReads.putIfAbsent(key, created);
+                if (read == null) {
+                    read = created;
+                    created.result.whenComplete((mapImage, throwable) -> inFlightReads.remove(key, created));
+                    try {
+                        ioExecutor.execute(() -> {
+                            // Skip reads that were cancelled while they were queued
+                            if (created.result.isDone()) {
+                                return;
+                            }
+                            try {
+                                created.result.complete(supplier.get());
+                            } catch (Throwable t) {
+                                created.result.completeExceptionally(t);
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        created.result.cancel(false);
+                        rejectedReads.increment();
+                        return null;
+                    }
+                }
+            }
+
+            CompletableFuture<MapImage> handle = read.attach();
+            if (handle != null) {
+                return handle;
+            }
+            // The read was cancelled right before, start a new one
+            inFlightReads.remove(key, read);
+        }
     }
 
     @Nullable
     public MapImage readStoredImage(String world, int chunkX, int chunkZ, float scale) throws IOException {
-        Path path = getImagePath(world, chunkX, chunkZ, scale);
-        if (!Files.exists(path)) {
+        PendingTile pending = pendingTiles.get(new TileKey(world, ChunkUtil.indexChunk(chunkX, chunkZ), scale));
+        if (pending != null) {
+            return pending.image();
+        }
+        if (isKnownMissing(world, chunkX, chunkZ, scale)) {
+            return null;
+        }
+        byte[] payload = getArchive(world, chunkX, chunkZ, scale).read(ExploredRegion.localIndex(chunkX, chunkZ));
+        if (payload == null) {
             return null;
         }
+        return decode(payload);
+    }
 
-        BufferedImage img;
-        try (InputStream in = Files.newInputStream(path)) {
-            img = ImageIO.read(in);
+    /**
+     * Lists the regions of all worlds that have stored tiles, see {@link ResolutionMigration}
+     */
+    List<StoredRegion> listStoredRegions() throws IOException {
+        List<StoredRegion> regions = new ArrayList<>();
+        if (!Files.isDirectory(folder)) {
+            return regions;
         }
 
-        MapImage mapImage = new MapImage(img.getWidth(), img.getHeight(), new int[img.getWidth() * img.getHeight()]);
-        for (int x = 0; x < img.getWidth(); x++) {
-            for (int y = 0; y < img.getHeight(); y++) {
-                int rgb = img.getRGB(x, y);
-                mapImage.data[x * mapImage.width + y] = (((rgb >> 16) & 0xFF) & 255) << 24 | (((rgb >> 8) & 0xFF) & 255) << 16 | ((rgb & 0xFF) & 255) << 8 | (((rgb >> 24) & 0xFF) & 255);
+        try (Stream<Path> worlds = Files.list(folder)) {
+            for (Path worldDir : (Iterable<Path>) worlds::iterator) {
+                if (!Files.isDirectory(worldDir)) {
+                    continue;
+                }
+                try (Stream<Path> regionDirs = Files.list(worldDir)) {
+                    for (Path regionDir : (Iterable<Path>) regionDirs::iterator) {
+                        Matcher matcher = REGION_DIRECTORY_PATTERN.matcher(regionDir.getFileName().toString());
+                        if (!matcher.matches() || !Files.isDirectory(regionDir)) {
+                            continue;
+                        }
+                        float nativeScale = findNativeScale(regionDir);
+                        if (nativeScale > 0) {
+                            regions.add(new StoredRegion(worldDir.getFileName().toString(),
+                                    Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)), nativeScale));
+                        }
+                    }
+                }
             }
         }
-        return mapImage;
+        return regions;
     }
 
-    private Path getImagePath(String world, int chunkX, int chunkZ, float scale) {
+    /**
+     * @return the largest scale stored in the region, which is the scale the tiles were generated in, or 0 if none
+     */
+    private static float findNativeScale(Path regionDir) throws IOException {
+        float nativeScale = 0;
+        try (Stream<Path> files = Files.list(regionDir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Matcher matcher = SCALE_PATTERN.matcher(file.getFileName().toString());
+                if (matcher.matches()) {
+                    nativeScale = Math.max(nativeScale, Float.parseFloat(matcher.group(1)));
+                }
+            }
+        }
+        return nativeScale;
+    }
+
+    /**
+     * Renders the tiles of a region that are missing in the given resolution from the tiles of the native scale
+     *
+     * @return the amount of rendered tiles
+     */
+    int rerenderRegion(StoredRegion region, Resolution resolution) throws IOException {
+        if (region.nativeScale() == resolution.getScale()) {
+            return 0;
+        }
+
+        int chunkX = region.regionX() << 4;
+        int chunkZ = region.regionZ() << 4;
+        TileArchive source = getArchive(region.world(), chunkX, chunkZ, region.nativeScale());
+        TileArchive target = getArchive(region.world(), chunkX, chunkZ, resolution.getScale());
+        IntList localIndices = new IntArrayList();
+        List<byte[]> payloads = new ArrayList<>();
+        for (int localIndex = 0; localIndex < 256; localIndex++) {
+            byte[] payload = target.contains(localIndex) ? null : source.read(localIndex);
+            if (payload == null) {
+                continue;
+            }
+            MapImage mapImage = decode(payload);
+            localIndices.add(localIndex);
+            payloads.add(encode(resolution.rescale(mapImage)));
+        }
+        if (!localIndices.isEmpty()) {
+            // Tiles that trackers saved in the meantime are newer, they are kept
+            target.writeMissing(localIndices.toIntArray(), payloads.toArray(byte[][]::new));
+        }
+        return localIndices.size();
+    }
+
+    public TileMemoryCache getMemoryCache() {
+        return memoryCache;
+    }
+
+    public int getQueuedTasks() {
+        return ioExecutor.getQueue().size();
+    }
+
+    public int getActiveTasks() {
+        return ioExecutor.getActiveCount();
+    }
+
+    public int getPendingSaves() {
+        return pendingTiles.size();
+    }
+
+    public int getInFlightReads() {
+        return inFlightReads.size();
+    }
+
+    public int getMaxInFlightReads() {
+        return MAX_IN_FLIGHT_READS;
+    }
+
+    public long getRejectedReads() {
+        return rejectedReads.sum();
+    }
+
+    public long getCancelledReads() {
+        return cancelledReads.sum();
+    }
+
+    /**
+     * Waits for pending tile I/O, writes all queued tiles and outdated overview tiles and closes all archives
+     */
+    public void shutdown() {
+        ioExecutor.shutdown();
+        try {
+            if (!ioExecutor.awaitTermination(30, TimeUnit.SECONDS)) {
+                LOGGER.atWarning().log("Timed out while waiting for tile I/O");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        Map<ArchiveKey, List<Map.Entry<TileKey, PendingTile>>> batches = new HashMap<>();
+        for (Map.Entry<TileKey, PendingTile> entry : pendingTiles.entrySet()) {
+            batches.computeIfAbsent(entry.getKey().archiveKey(), k -> new ArrayList<>()).add(entry);
+        }
+        for (List<Map.Entry<TileKey, PendingTile>> batch : batches.values()) {
+            try {
+                writeBatch(batch);
+            } catch (RuntimeException e) {
+                LOGGER.atSevere().log("Failed to save map tiles", e);
+            }
+        }
+        overviews.shutdown();
+
+        List<TileArchive> toClose;
+        synchronized (openArchives) {
+            toClose = new ArrayList<>(openArchives.keySet());
+            openArchives.clear();
+        }
+        toClose.forEach(TileArchive::close);
+    }
+
+    private static ThreadPoolExecutor createIoExecutor() {
+        AtomicInteger threadId = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(IO_THREADS, IO_THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(IO_QUEUE_CAPACITY), runnable -> {
+            Thread thread = new Thread(runnable, "ExplorersMap-Tiles-" + threadId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private boolean isKnownMissing(String world, int chunkX, int chunkZ, float scale) {
+        if (pendingTiles.containsKey(new TileKey(world, ChunkUtil.indexChunk(chunkX, chunkZ), scale))) {
+            return false;
+        }
+        TileArchive archive = archives.get(new ArchiveKey(world, ChunkUtil.indexChunk(chunkX >> 4, chunkZ >> 4), scale));
+        return archive != null && archive.isManifestLoaded() && !archive.isStored(ExploredRegion.localIndex(chunkX, chunkZ));
+    }
+
+    private TileArchive getArchive(String world, int chunkX, int chunkZ, float scale) {
+        return touch(archives.computeIfAbsent(new ArchiveKey(world, ChunkUtil.indexChunk(chunkX >> 4, chunkZ >> 4), scale),
+                key -> new TileArchive(getArchivePath(world, chunkX, chunkZ, scale), legacyImporter)));
+    }
+
+    /**
+     * @param x the x coordinate of the overview tile, see {@link OverviewPyramid}
+     * @param z the z coordinate of the overview tile
+     */
+    TileArchive getOverviewArchive(String world, int level, int x, int z) {
+        return touch(overviewArchives.computeIfAbsent(new ArchiveKey(world, ChunkUtil.indexChunk(x >> 4, z >> 4), level),
+                key -> new TileArchive(folder.resolve(world).resolve("overview_" + level).resolve((x >> 4) + "." + (z >> 4) + TileArchive.EXTENSION), legacyImporter)));
+    }
+
+    private TileArchive touch(TileArchive archive) {
+        TileArchive eldest = null;
+        synchronized (openArchives) {
+            openArchives.put(archive, Boolean.TRUE);
+            if (openArchives.size() > MAX_OPEN_ARCHIVES) {
+                Iterator<TileArchive> iterator = openArchives.keySet().iterator();
+                eldest = iterator.next();
+                iterator.remove();
+            }
+        }
+        if (eldest != null) {
+            eldest.close();
+        }
+        return archive;
+    }
+
+    private Path getArchivePath(String world, int chunkX, int chunkZ, float scale) {
         int rx = chunkX >> 4;
         int rz = chunkZ >> 4;
-        return folder.resolve(world).resolve(rx + "." + rz).resolve("scale_" + scale).resolve(chunkX + "." + chunkZ + ".png");
+        return folder.resolve(world).resolve(rx + "." + rz).resolve("scale_" + scale + TileArchive.EXTENSION);
+    }
+
+    private record ArchiveKey(String world, long regionIndex, float scale) {
+    }
+
+    record StoredRegion(String world, int regionX, int regionZ, float nativeScale) {
+        String id() {
+            return world + "/" + regionX + "." + regionZ;
+        }
+    }
+
+    private record TileKey(String world, long chunkIndex, float scale) {
+        private ArchiveKey archiveKey() {
+            return new ArchiveKey(world, ChunkUtil.indexChunk(ChunkUtil.xOfChunkIndex(chunkIndex) >> 4, ChunkUtil.zOfChunkIndex(chunkIndex) >> 4), scale);
+        }
+    }
+
+    /**
+     * A read shared by all callers that requested the same tile
+     */
+    private final class InFlightRead {
+        private final CompletableFuture<MapImage> result = new CompletableFuture<>();
+        // -1 once the read was cancelled because nobody needs it anymore
+        private final AtomicInteger callers = new AtomicInteger();
+
+        /**
+         * @return a future for a new caller or null if the read was already cancelled
+         */
+        @Nullable
+        private CompletableFuture<MapImage> attach() {
+            int current;
+            do {
+                current = callers.get();
+                if (current < 0) {
+                    return null;
+                }
+            } while (!callers.compareAndSet(current, current + 1));
+
+            CompletableFuture<MapImage> handle = result.copy();
+            handle.whenComplete((mapImage, throwable) -> {
+                if (handle.isCancelled()) {
+                    detach();
+                }
+            });
+            return handle;
+        }
+
+        private void detach() {
+            if (callers.decrementAndGet() == 0 && callers.compareAndSet(0, -1) && result.cancel(false)) {
+                cancelledReads.increment();
+            }
+        }
+    }
+
+    /**
+     * A tile waiting to be written, rescaling it for another resolution is deferred until it is needed
+     */
+    private static final class PendingTile {
+        private final MapImage source;
+        @Nullable
+        private final Resolution resolution;
+        // Only written if the tile is stored already, see queueImageSave
+        private final boolean replaceOnly;
+        private volatile MapImage image;
+        // Set while a flush is writing the tile, so overlapping flushes don't write it twice
+        private volatile boolean queued;
+        // Only modified by the flush that wrote the tile
+        private int failedWrites;
+
+        private PendingTile(MapImage source, @Nullable Resolution resolution) {
+            this(source, resolution, false);
+        }
+
+        private PendingTile(MapImage source, @Nullable Resolution resolution, boolean replaceOnly) {
+            this.source = source;
+            this.resolution = resolution;
+            this.replaceOnly = replaceOnly;
+            this.image = resolution == null ? source : null;
+        }
+
+        private MapImage image() {
+            MapImage result = image;
+            if (result == null) {
+                result = resolution.rescale(source);
+                image = result;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Imports the {@code scale_<s>/<x>.<z>.png} directories of older versions
+     */
+    private static class PngDirectoryImporter implements TileArchive.LegacyImporter {
+
+        @Override
+        public boolean hasLegacyTiles(Path archive) {
+            return Files.isDirectory(getLegacyDirectory(archive));
+        }
+
+        @Override
+        public void importLegacyTiles(Path archive, BiConsumer<Integer, byte[]> consumer) throws IOException {
+            Path dir = getLegacyDirectory(archive);
+            if (!Files.isDirectory(dir)) {
+                return;
+            }
+
+            List<Path> imported = new ArrayList<>();
+            try (Stream<Path> stream = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) stream::iterator) {
+                    Matcher matcher = LEGACY_TILE_PATTERN.matcher(file.getFileName().toString());
+                    if (matcher.matches()) {
+                        // The PNG bytes are stored as they are, no need to decode them
+                        byte[] png = Files.readAllBytes(file);
+                        byte[] payload = new byte[png.length + 1];
+                        payload[0] = TileCodec.PNG.getId();
+                        System.arraycopy(png, 0, payload, 1, png.length);
+                        consumer.accept(ExploredRegion.localIndex(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2))), payload);
+                        imported.add(file);
+                    }
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            for (Path file : imported) {
+                Files.delete(file);
+            }
+            try {
+                Files.delete(dir);
+            } catch (DirectoryNotEmptyException ignored) {
+                // Unknown files are left alone
+            }
+        }
+
+        private static Path getLegacyDirectory(Path archive) {
+            String name = archive.getFileName().toString();
+            return archive.resolveSibling(name.substring(0, name.length() - TileArchive.EXTENSION.length()));
+        }
     }
 }
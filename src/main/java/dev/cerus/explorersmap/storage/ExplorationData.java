@@ -7,32 +7,85 @@ import com.hypixel.hytale.codec.codecs.array.ArrayCodec;
 import com.hypixel.hytale.math.util.ChunkUtil;
 import com.hypixel.hytale.math.vector.Vector2d;
 import com.hypixel.hytale.protocol.packets.worldmap.MapChunk;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongPredicate;
+import it.unimi.dsi.fastutil.longs.LongSet;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
+import javax.annotation.Nullable;
 
+/**
+ * The explored regions of a player or the global map in one world
+ * <p>
+ * Thread safe, trackers mark chunks as explored while the storage saves the data on its I/O threads. Region bitmaps
+ * are copy-on-write and the ordered region view is republished whenever a region is added, so snapshots for saving
+ * are taken without locking.
+ * <p>
+ * On disk, regions are grouped into shards of 8x8 regions which are loaded lazily. Shards that are not loaded are
+ * remembered until the storage merges them in, and persisted shards can be evicted again to save memory. Since
+ * exploration only ever adds chunks, regions of an unloaded shard can still be explored in the meantime, the chunks
+ * on disk are merged in when the shard is loaded.
+ */
 public final class ExplorationData {
 
     public static final BuilderCodec<ExplorationData> CODEC = BuilderCodec.builder(ExplorationData.class, ExplorationData::new)
             .append(new KeyedCodec<>("World", Codec.STRING), ExplorationData::setWorldName, ExplorationData::getWorldName).add()
             .append(new KeyedCodec<>("Regions", new ArrayCodec<>(ExploredRegion.CODEC, ExploredRegion[]::new)), (comp, explored) -> {
-                comp.setRegions(new ArrayList<>(Arrays.asList(explored)));
+                comp.setRegions(Arrays.asList(explored));
             }, comp -> comp.getRegions().toArray(ExploredRegion[]::new)).add()
             .build();
-    private String worldName;
-    private List<ExploredRegion> regions;
+    // A shard on disk contains 8x8 regions
+    public static final int SHARD_SHIFT = 3;
+    public static final int SHARD_REGIONS = 1 << (2 * SHARD_SHIFT);
+    private static final ExploredRegion[] NO_REGIONS = new ExploredRegion[0];
+    // Rough heap usage of a resident region: the region, its bitmap, the index entry and the view slot
+    private static final int REGION_BYTES = 24 + 48 + 32 + 8;
+    private static final int UNLOADED_SHARD_BYTES = 16;
+    private static final int BASE_BYTES = 128;
+
+    // Guarded by this, only used to find regions
+    private final Long2ObjectMap<ExploredRegion> regionIndex;
+    // Guarded by this, keys of shards that exist on disk but are not merged into memory
+    private final LongSet unloadedShards;
+    // Insertion ordered view of the index, used for serialization and sending. Replaced, never modified.
+    private volatile ExploredRegion[] regions;
+    private volatile String worldName;
+    private volatile boolean dirty;
+    private volatile long lastAccess;
 
     public ExplorationData() {
-        regions = new ArrayList<>();
+        regionIndex = new Long2ObjectOpenHashMap<>();
+        unloadedShards = new LongOpenHashSet();
+        regions = NO_REGIONS;
+        lastAccess = System.nanoTime();
     }
 
-    public void setRegions(List<ExploredRegion> regions) {
-        this.regions = regions;
+    public synchronized void setRegions(List<ExploredRegion> regions) {
+        this.regionIndex.clear();
+        this.unloadedShards.clear();
+        this.regions = NO_REGIONS;
+        for (ExploredRegion region : regions) {
+            // Duplicate region entries were possible in older files, they are merged
+            merge(region);
+        }
     }
 
     public List<ExploredRegion> getRegions() {
-        return regions;
+        return Arrays.asList(regions.clone());
+    }
+
+    public int getRegionCount() {
+        return regions.length;
+    }
+
+    public synchronized ExploredRegion getRegion(long regionKey) {
+        return regionIndex.get(regionKey);
     }
 
     public void setWorldName(String worldName) {
@@ -46,26 +99,228 @@ public final class ExplorationData {
     public ExploredRegion getOrCreateRegionForChunk(MapChunk chunk) {
         int rx = chunk.chunkX >> 4;
         int rz = chunk.chunkZ >> 4;
-        long rk = ChunkUtil.indexChunk(rx, rz);
+        return getOrCreateRegion(ChunkUtil.indexChunk(rx, rz));
+    }
+
+    private synchronized ExploredRegion getOrCreateRegion(long regionKey) {
+        ExploredRegion region = regionIndex.get(regionKey);
+        if (region == null) {
+            region = new ExploredRegion(regionKey);
+            regionIndex.put(regionKey, region);
+
+            ExploredRegion[] current = regions;
+            ExploredRegion[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = region;
+            regions = updated;
+        }
+        return region;
+    }
+
+    public boolean isExplored(int chunkX, int chunkZ) {
+        ExploredRegion region = getRegion(ChunkUtil.indexChunk(chunkX >> 4, chunkZ >> 4));
+        return region != null && region.isExplored(chunkX, chunkZ);
+    }
+
+    public synchronized void markExplored(MapChunk chunk) {
+        // Under the lock so a region can't be evicted while it is being marked
+        lastAccess = System.nanoTime();
+        if (getOrCreateRegionForChunk(chunk).markExplored(chunk)) {
+            dirty = true;
+        }
+    }
 
-        return regions.stream()
-                .filter(exploredRegion -> exploredRegion.getKey() == rk)
-                .findAny()
-                .orElseGet(() -> {
-                    ExploredRegion region = new ExploredRegion(rk, new ArrayList<>());
-                    regions.add(region);
-                    return region;
-                });
+    /**
+     * Merges the explored chunks of the given region into this data set. Merged chunks don't make the data dirty,
+     * they are expected to be on disk already.
+     */
+    public synchronized void merge(ExploredRegion region) {
+        ExploredRegion existing = getOrCreateRegion(region.getKey());
+        long[] before = existing.getBits();
+        long[] merged = existing.merge(region.getBits());
+        if (merged != null && existing.isPersisted(before)) {
+            existing.markPersisted(merged);
+        }
     }
 
-    public void markExplored(MapChunk chunk) {
-        getOrCreateRegionForChunk(chunk).markExplored(chunk);
+    public boolean isDirty() {
+        return dirty;
     }
 
+    /**
+     * Flags the data as changed again, used when persisting a snapshot failed
+     */
+    public void markDirty() {
+        dirty = true;
+    }
+
+    /**
+     * Takes a snapshot of all regions
+     */
+    public ExplorationSnapshot snapshot() {
+        ExploredRegion[] view = regions;
+        long[][] bitmaps = new long[view.length][];
+        for (int i = 0; i < view.length; i++) {
+            bitmaps[i] = view[i].getBits();
+        }
+        return new ExplorationSnapshot(worldName, view, bitmaps);
+    }
+
+    /**
+     * Takes a snapshot of all regions that changed since they were last persisted and resets the dirty flag
+     *
+     * @return the snapshot or null if nothing changed
+     */
+    @Nullable
+    public ExplorationSnapshot snapshotChanges() {
+        if (!dirty) {
+            return null;
+        }
+        // Reset before looking at the regions, a concurrent change will set the flag again
+        dirty = false;
+
+        List<ExploredRegion> changed = new ArrayList<>();
+        List<long[]> bitmaps = new ArrayList<>();
+        for (ExploredRegion region : regions) {
+            long[] bits = region.getBits();
+            if (!region.isPersisted(bits)) {
+                changed.add(region);
+                bitmaps.add(bits);
+            }
+        }
+        return new ExplorationSnapshot(worldName, changed.toArray(ExploredRegion[]::new), bitmaps.toArray(long[][]::new));
+    }
+
+    public static long shardKeyOfRegion(long regionKey) {
+        return ChunkUtil.indexChunk(ChunkUtil.xOfChunkIndex(regionKey) >> SHARD_SHIFT, ChunkUtil.zOfChunkIndex(regionKey) >> SHARD_SHIFT);
+    }
+
+    public static long shardKeyOfChunk(int chunkX, int chunkZ) {
+        return ChunkUtil.indexChunk(chunkX >> (4 + SHARD_SHIFT), chunkZ >> (4 + SHARD_SHIFT));
+    }
+
+    /**
+     * Evicts all regions of shards that match the predicate and are completely persisted
+     *
+     * @return the amount of evicted regions
+     */
+    public synchronized int evictShards(LongPredicate cold) {
+        ExploredRegion[] view = regions;
+        LongSet keep = new LongOpenHashSet();
+        for (ExploredRegion region : view) {
+            long shard = shardKeyOfRegion(region.getKey());
+            if (region.isDirty() || !cold.test(shard)) {
+                keep.add(shard);
+            }
+        }
+
+        List<ExploredRegion> kept = new ArrayList<>(view.length);
+        for (ExploredRegion region : view) {
+            long shard = shardKeyOfRegion(region.getKey());
+            if (keep.contains(shard)) {
+                kept.add(region);
+            } else {
+                regionIndex.remove(region.getKey());
+                unloadedShards.add(shard);
+            }
+        }
+        if (kept.size() == view.length) {
+            return 0;
+        }
+        regions = kept.toArray(ExploredRegion[]::new);
+        return view.length - kept.size();
+    }
+
+    public synchronized void setUnloadedShards(LongSet shards) {
+        unloadedShards.clear();
+        unloadedShards.addAll(shards);
+    }
+
+    public synchronized boolean hasUnloadedShards() {
+        return !unloadedShards.isEmpty();
+    }
+
+    public synchronized boolean isShardLoaded(long shardKey) {
+        return !unloadedShards.contains(shardKey);
+    }
+
+    /**
+     * @return the unloaded shards, nearest to the given map chunk first
+     */
+    public synchronized LongList getUnloadedShards(int cx, int cz) {
+        LongList list = new LongArrayList(unloadedShards);
+        long origin = shardKeyOfChunk(cx, cz);
+        list.sort((a, b) -> Double.compare(shardDistanceSquared(origin, a), shardDistanceSquared(origin, b)));
+        return list;
+    }
+
+    private static double shardDistanceSquared(long a, long b) {
+        return Vector2d.distanceSquared(ChunkUtil.xOfChunkIndex(a), ChunkUtil.zOfChunkIndex(a), ChunkUtil.xOfChunkIndex(b), ChunkUtil.zOfChunkIndex(b));
+    }
+
+    /**
+     * Merges a shard that was read from disk
+     */
+    public synchronized void mergeShard(long shardKey, ExplorationData fromDisk) {
+        for (ExploredRegion region : fromDisk.regions) {
+            merge(region);
+        }
+        unloadedShards.remove(shardKey);
+    }
+
+    /**
+     * @return the estimated amount of heap this data set occupies
+     */
+    public synchronized long estimateBytes() {
+        return BASE_BYTES + (long) regions.length * REGION_BYTES + (long) unloadedShards.size() * UNLOADED_SHARD_BYTES;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} of the last time chunks were explored or sent from this data set
+     */
+    public long getLastAccess() {
+        return lastAccess;
+    }
+
+    /**
+     * Takes a snapshot of all regions of a shard
+     */
+    public ExplorationSnapshot snapshotShard(long shardKey) {
+        ExploredRegion[] view = regions;
+        List<ExploredRegion> shardRegions = new ArrayList<>();
+        List<long[]> bitmaps = new ArrayList<>();
+        for (ExploredRegion region : view) {
+            if (shardKeyOfRegion(region.getKey()) == shardKey) {
+                shardRegions.add(region);
+                bitmaps.add(region.getBits());
+            }
+        }
+        return new ExplorationSnapshot(worldName, shardRegions.toArray(ExploredRegion[]::new), bitmaps.toArray(long[][]::new));
+    }
+
+    /**
+     * Copies the loaded regions for a tracker. Regions of unloaded shards are not included, see {@link #getUnloadedShards(int, int)}.
+     */
     public List<ExploredRegion> copyRegionsForSending(int cx, int cz) {
-        List<ExploredRegion> copy = new ArrayList<>();
-        regions.forEach(exploredRegion -> copy.add(exploredRegion.copyForSending(cx, cz)));
-        regions.sort(Comparator.comparingDouble(r -> Vector2d.distanceSquared(
+        return copyRegionsForSending(cx, cz, null);
+    }
+
+    /**
+     * Copies the regions of a single shard for a tracker
+     */
+    public List<ExploredRegion> copyShardForSending(long shardKey, int cx, int cz) {
+        return copyRegionsForSending(cx, cz, shardKey);
+    }
+
+    private List<ExploredRegion> copyRegionsForSending(int cx, int cz, @Nullable Long shardKey) {
+        lastAccess = System.nanoTime();
+        ExploredRegion[] view = regions;
+        List<ExploredRegion> copy = new ArrayList<>(view.length);
+        for (ExploredRegion exploredRegion : view) {
+            if (shardKey == null || shardKeyOfRegion(exploredRegion.getKey()) == shardKey) {
+                copy.add(exploredRegion.copyForSending(cx, cz));
+            }
+        }
+        copy.sort(Comparator.comparingDouble(r -> Vector2d.distanceSquared(
                 cx >> 4, cz >> 4,
                 ChunkUtil.xOfChunkIndex(r.getKey()), ChunkUtil.zOfChunkIndex(r.getKey())
         )));
@@ -0,0 +1,218 @@
+package dev.cerus.explorersmap.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import javax.annotation.Nullable;
+
+/**
+ * Compact binary format for exploration data
+ * <p>
+ * Layout: magic, version, uncompressed payload length and a deflated payload. The payload contains the world name
+ * followed by a list of regions. Each region is stored either as a raw bitmap or, if that is smaller, as a list
+ * of runs of explored chunks.
+ */
+public final class ExplorationFile {
+
+    public static final String EXTENSION = ".bin";
+
+    private static final int MAGIC = 0x454D4558; // EMEX
+    private static final byte VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 1 + 4;
+
+    private static final byte ENCODING_BITMAP = 0;
+    private static final byte ENCODING_RUNS = 1;
+    private static final int BITMAP_SIZE = ExploredRegion.CHUNKS / Byte.SIZE;
+    // Deflate never compresses better than this
+    private static final int MAX_DEFLATE_RATIO = 1032;
+
+    private ExplorationFile() {
+    }
+
+    /**
+     * @param maxRegions the most regions the file can hold, a payload that could hold more means the file is corrupted
+     */
+    @Nullable
+    public static ExplorationData read(Path path, int maxRegions) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+
+        ByteBuffer raw;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            raw = ByteBuffer.allocate((int) channel.size());
+            while (raw.hasRemaining() && channel.read(raw) != -1) {
+            }
+            raw.flip();
+        }
+
+        if (raw.remaining() < HEADER_SIZE || raw.getInt() != MAGIC) {
+            throw new IOException("Not an exploration file: " + path);
+        }
+        byte version = raw.get();
+        if (version != VERSION) {
+            throw new IOException("Unsupported exploration file version " + version + ": " + path);
+        }
+
+        // Checked before allocating, a corrupted length must not run out of memory
+        int length = raw.getInt();
+        if (length < 0 || length > getMaxPayloadSize(maxRegions) || length / MAX_DEFLATE_RATIO > raw.remaining()) {
+            throw new IOException("Invalid payload length " + length + " of exploration file: " + path);
+        }
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(raw);
+            while (payload.hasRemaining() && !inflater.finished()) {
+                if (inflater.inflate(payload) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+            }
+            if (payload.hasRemaining()) {
+                throw new IOException("Truncated exploration file: " + path);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted exploration file: " + path, e);
+        } finally {
+            inflater.end();
+        }
+        payload.flip();
+        return decode(payload);
+    }
+
+    public static void write(Path path, ExplorationSnapshot snapshot) throws IOException {
+        ByteBuffer payload = encode(snapshot);
+        int length = payload.remaining();
+
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + length + 64);
+        out.putInt(MAGIC).put(VERSION).putInt(length);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(payload);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (!out.hasRemaining()) {
+                    ByteBuffer grown = ByteBuffer.allocate(out.capacity() * 2);
+                    out.flip();
+                    grown.put(out);
+                    out = grown;
+                }
+                deflater.deflate(out);
+            }
+        } finally {
+            deflater.end();
+        }
+        out.flip();
+
+        // Write to a temporary file first so a crash never leaves a half written file behind
+        Files.createDirectories(path.getParent());
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static long getMaxPayloadSize(int regions) {
+        return 2 + 0xFFFF + 4 + (long) regions * (8 + 1 + BITMAP_SIZE);
+    }
+
+    private static ExplorationData decode(ByteBuffer buf) {
+        ExplorationData data = new ExplorationData();
+        byte[] worldName = new byte[buf.getShort() & 0xFFFF];
+        buf.get(worldName);
+        data.setWorldName(worldName.length == 0 ? null : new String(worldName, StandardCharsets.UTF_8));
+
+        int regionCount = buf.getInt();
+        List<ExploredRegion> regions = new ArrayList<>(regionCount);
+        for (int i = 0; i < regionCount; i++) {
+            regions.add(decodeRegion(buf));
+        }
+        data.setRegions(regions);
+        return data;
+    }
+
+    private static ByteBuffer encode(ExplorationSnapshot snapshot) {
+        byte[] worldName = snapshot.getWorldName() == null ? new byte[0] : snapshot.getWorldName().getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer buf = ByteBuffer.allocate(2 + worldName.length + 4 + snapshot.size() * (8 + 1 + BITMAP_SIZE));
+        buf.putShort((short) worldName.length).put(worldName);
+        buf.putInt(snapshot.size());
+        for (int i = 0; i < snapshot.size(); i++) {
+            encodeRegion(buf, snapshot.getKey(i), snapshot.getBits(i));
+        }
+        return buf.flip();
+    }
+
+    static ExploredRegion decodeRegion(ByteBuffer buf) {
+        long key = buf.getLong();
+        byte encoding = buf.get();
+        ExploredRegion region = new ExploredRegion(key);
+        if (encoding == ENCODING_BITMAP) {
+            long[] bits = region.getBits();
+            for (int i = 0; i < bits.length; i++) {
+                bits[i] = buf.getLong();
+            }
+        } else {
+            int runCount = buf.get() & 0xFF;
+            for (int i = 0; i < runCount; i++) {
+                int start = buf.get() & 0xFF;
+                int end = start + (buf.get() & 0xFF);
+                for (int index = start; index <= end; index++) {
+                    region.set(index);
+                }
+            }
+        }
+        return region;
+    }
+
+    static void encodeRegion(ByteBuffer buf, long key, long[] bits) {
+        buf.putLong(key);
+
+        // A run takes two bytes, so runs only pay off for sparse or very clustered regions
+        int runCount = countRuns(bits);
+        if (1 + runCount * 2 < BITMAP_SIZE) {
+            buf.put(ENCODING_RUNS);
+            buf.put((byte) runCount);
+            int start = ExploredRegion.nextSet(bits, 0);
+            while (start != -1) {
+                int end = start;
+                while (end + 1 < ExploredRegion.CHUNKS && ExploredRegion.get(bits, end + 1)) {
+                    end++;
+                }
+                buf.put((byte) start).put((byte) (end - start));
+                start = end + 1 < ExploredRegion.CHUNKS ? ExploredRegion.nextSet(bits, end + 1) : -1;
+            }
+        } else {
+            buf.put(ENCODING_BITMAP);
+            for (long word : bits) {
+                buf.putLong(word);
+            }
+        }
+    }
+
+    private static int countRuns(long[] bits) {
+        int runs = 0;
+        boolean previous = false;
+        for (int index = 0; index < ExploredRegion.CHUNKS; index++) {
+            boolean current = ExploredRegion.get(bits, index);
+            if (current && !previous) {
+                runs++;
+            }
+            previous = current;
+        }
+        return runs;
+    }
+}
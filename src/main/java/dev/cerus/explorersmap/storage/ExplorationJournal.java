@@ -0,0 +1,90 @@
+package dev.cerus.explorersmap.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Append-only journal of changed regions, stored next to the exploration file
+ * <p>
+ * Each record is a region key followed by the full region bitmap. Replaying a record merges it into the loaded
+ * data, so records can be replayed any number of times. A torn record at the end of the file is ignored.
+ */
+public final class ExplorationJournal {
+
+    public static final String EXTENSION = ".journal";
+
+    private static final int RECORD_SIZE = Long.BYTES + ExploredRegion.CHUNKS / Byte.SIZE;
+
+    private ExplorationJournal() {
+    }
+
+    public static void append(Path path, ExplorationSnapshot snapshot) throws IOException {
+        if (snapshot.size() == 0) {
+            return;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(snapshot.size() * RECORD_SIZE);
+        for (int i = 0; i < snapshot.size(); i++) {
+            buf.putLong(snapshot.getKey(i));
+            for (long word : snapshot.getBits(i)) {
+                buf.putLong(word);
+            }
+        }
+        buf.flip();
+
+        Files.createDirectories(path.getParent());
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+            // Overwrite a torn record instead of appending after it
+            channel.position(channel.size() - channel.size() % RECORD_SIZE);
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        }
+    }
+
+    /**
+     * Merges all records of the journal into the given data
+     *
+     * @return the amount of records that were replayed
+     */
+    public static int replay(Path path, ExplorationData data) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+
+        ByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buf = ByteBuffer.allocate((int) (channel.size() - channel.size() % RECORD_SIZE));
+            while (buf.hasRemaining() && channel.read(buf) != -1) {
+            }
+            buf.flip();
+        }
+
+        int records = 0;
+        while (buf.remaining() >= RECORD_SIZE) {
+            ExploredRegion region = new ExploredRegion(buf.getLong());
+            long[] bits = region.getBits();
+            for (int i = 0; i < bits.length; i++) {
+                bits[i] = buf.getLong();
+            }
+            data.merge(region);
+            records++;
+        }
+        return records;
+    }
+
+    /**
+     * @return the amount of complete records in the journal
+     */
+    public static int countRecords(Path path) throws IOException {
+        return Files.exists(path) ? (int) (Files.size(path) / RECORD_SIZE) : 0;
+    }
+
+    public static void delete(Path path) throws IOException {
+        Files.deleteIfExists(path);
+    }
+}
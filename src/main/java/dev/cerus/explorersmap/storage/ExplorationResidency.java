@@ -0,0 +1,105 @@
+package dev.cerus.explorersmap.storage;
+
+import com.hypixel.hytale.logger.HytaleLogger;
+import com.hypixel.hytale.math.util.ChunkUtil;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongPredicate;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.longs.LongSets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the heap usage of loaded exploration data within a budget
+ * <p>
+ * Shards close to an online player are hot and always stay resident. When the budget is exceeded, the cold shards
+ * of the least recently used data sets are unloaded until the estimate fits again. Unloaded shards are loaded from
+ * disk again once a tracker needs them.
+ */
+public final class ExplorationResidency {
+
+    private static final HytaleLogger LOGGER = HytaleLogger.forEnclosingClass();
+    // Shards within this radius (in shards) around a player are never unloaded
+    private static final int HOT_RADIUS = 1;
+
+    private static final Map<String, LongSet> hotShards = new ConcurrentHashMap<>();
+
+    private ExplorationResidency() {
+    }
+
+    /**
+     * Replaces the hot shards of a world
+     *
+     * @param playerChunks the map chunk indices of all players in the world
+     */
+    public static void updateHotShards(String world, LongSet playerChunks) {
+        LongSet hot = new LongOpenHashSet();
+        playerChunks.forEach(chunkIndex -> {
+            long shard = ExplorationData.shardKeyOfChunk(ChunkUtil.xOfChunkIndex(chunkIndex), ChunkUtil.zOfChunkIndex(chunkIndex));
+            hot.addAll(getShardsAround(shard, HOT_RADIUS));
+        });
+        hotShards.put(world, hot);
+    }
+
+    /**
+     * @return the keys of all shards within the radius (in shards) around the given shard
+     */
+    public static LongSet getShardsAround(long shard, int radius) {
+        LongSet shards = new LongOpenHashSet();
+        int sx = ChunkUtil.xOfChunkIndex(shard);
+        int sz = ChunkUtil.zOfChunkIndex(shard);
+        for (int x = sx - radius; x <= sx + radius; x++) {
+            for (int z = sz - radius; z <= sz + radius; z++) {
+                shards.add(ChunkUtil.indexChunk(x, z));
+            }
+        }
+        return shards;
+    }
+
+    public static void removeWorld(String world) {
+        hotShards.remove(world);
+    }
+
+    static void enforce(long budgetBytes, List<Resident> residents) {
+        long total = 0;
+        for (Resident resident : residents) {
+            total += resident.data().estimateBytes();
+        }
+        if (total <= budgetBytes) {
+            return;
+        }
+
+        List<Resident> lru = new ArrayList<>(residents);
+        lru.sort(Comparator.comparingLong(resident -> resident.data().getLastAccess()));
+
+        int evicted = 0;
+        for (Resident resident : lru) {
+            if (total <= budgetBytes) {
+                break;
+            }
+            LongSet hot = hotShards.getOrDefault(resident.world(), LongSets.EMPTY_SET);
+            long before = resident.data().estimateBytes();
+            evicted += resident.evictor().evict(resident.uuid(), key -> !hot.contains(key));
+            total -= before - resident.data().estimateBytes();
+        }
+
+        if (evicted > 0) {
+            LOGGER.atFine().log("Unloaded " + evicted + " exploration regions, ~" + (total / 1024) + " KiB resident");
+        }
+        if (total > budgetBytes) {
+            LOGGER.atWarning().log("Exploration data exceeds the memory budget even after unloading all cold shards");
+        }
+    }
+
+    record Resident(String world, UUID uuid, ExplorationData data, Evictor evictor) {
+    }
+
+    @FunctionalInterface
+    interface Evictor {
+        int evict(UUID uuid, LongPredicate cold);
+    }
+}
@@ -0,0 +1,84 @@
+package dev.cerus.explorersmap.storage;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An immutable view of (a part of) an exploration data set at one point in time
+ * <p>
+ * The bitmaps are shared with the regions they were taken from. They are never modified after publication, so
+ * a snapshot can be written on any thread without locking while trackers keep exploring.
+ */
+public final class ExplorationSnapshot {
+
+    private final String worldName;
+    private final ExploredRegion[] regions;
+    private final long[][] bitmaps;
+
+    ExplorationSnapshot(String worldName, ExploredRegion[] regions, long[][] bitmaps) {
+        this.worldName = worldName;
+        this.regions = regions;
+        this.bitmaps = bitmaps;
+    }
+
+    public String getWorldName() {
+        return worldName;
+    }
+
+    public int size() {
+        return regions.length;
+    }
+
+    public long getKey(int index) {
+        return regions[index].getKey();
+    }
+
+    public long[] getBits(int index) {
+        return bitmaps[index];
+    }
+
+    /**
+     * Marks all regions of this snapshot as written to disk. Regions that changed after the snapshot was taken stay dirty.
+     */
+    public void markPersisted() {
+        for (int i = 0; i < regions.length; i++) {
+            regions[i].markPersisted(bitmaps[i]);
+        }
+    }
+
+    /**
+     * Splits this snapshot into one snapshot per shard, see {@link ExplorationData#shardKeyOfRegion(long)}
+     */
+    public Long2ObjectMap<ExplorationSnapshot> splitByShard() {
+        Long2ObjectMap<List<Integer>> indices = new Long2ObjectOpenHashMap<>();
+        for (int i = 0; i < regions.length; i++) {
+            indices.computeIfAbsent(ExplorationData.shardKeyOfRegion(regions[i].getKey()), k -> new ArrayList<>()).add(i);
+        }
+
+        Long2ObjectMap<ExplorationSnapshot> shards = new Long2ObjectOpenHashMap<>(indices.size());
+        for (Long2ObjectMap.Entry<List<Integer>> entry : indices.long2ObjectEntrySet()) {
+            List<Integer> shardIndices = entry.getValue();
+            ExploredRegion[] shardRegions = new ExploredRegion[shardIndices.size()];
+            long[][] shardBitmaps = new long[shardIndices.size()][];
+            for (int i = 0; i < shardIndices.size(); i++) {
+                shardRegions[i] = regions[shardIndices.get(i)];
+                shardBitmaps[i] = bitmaps[shardIndices.get(i)];
+            }
+            shards.put(entry.getLongKey(), new ExplorationSnapshot(worldName, shardRegions, shardBitmaps));
+        }
+        return shards;
+    }
+
+    /**
+     * Creates detached copies of the regions, e.g. for the JSON export
+     */
+    public List<ExploredRegion> toRegions() {
+        List<ExploredRegion> list = new ArrayList<>(regions.length);
+        for (int i = 0; i < regions.length; i++) {
+            list.add(new ExploredRegion(regions[i].getKey(), bitmaps[i].clone()));
+        }
+        return list;
+    }
+}
@@ -1,107 +1,496 @@
 package dev.cerus.explorersmap.storage;
 
+import com.hypixel.hytale.logger.HytaleLogger;
+import com.hypixel.hytale.math.util.ChunkUtil;
 import com.hypixel.hytale.server.core.util.Config;
-import dev.cerus.explorersmap.ExplorersMapPlugin;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.LongCollection;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongPredicate;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashMap;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 public class ExplorationStorage {
+    private static final HytaleLogger LOGGER = HytaleLogger.forEnclosingClass();
     public static final UUID UUID_GLOBAL = new UUID(0, 0);
 
-    private static final Map<String, WorldData> worldDataMap = new HashMap<>();
+    private static final int IO_THREADS = 2;
+    private static final int IO_QUEUE_CAPACITY = 4096;
+    private static final Pattern SHARD_FILE_PATTERN = Pattern.compile("(-?\\d+)\\.(-?\\d+)(\\.bin|\\.journal)");
 
-    public static ExplorationData getOrLoad(String world, UUID uuid) {
-        WorldData worldData = worldDataMap.computeIfAbsent(world, o -> new WorldData(world));
-        ExplorationData explorationData = worldData.get(uuid);
-        if (explorationData == null) {
-            worldData.load(uuid);
-            explorationData = worldData.get(uuid);
-        }
-        return explorationData;
+    // World data is kept for the lifetime of the storage, it is tiny once all players are unloaded
+    private final Map<String, WorldData> worldDataMap = new ConcurrentHashMap<>();
+    // Created per storage, a storage that was shut down is replaced when the plugin is loaded again
+    private final ThreadPoolExecutor ioExecutor;
+    private final Path folder;
+    private final LongSupplier memoryBudget;
+    private final BooleanSupplier exportJson;
+
+    /**
+     * @param memoryBudget the heap budget for exploration data in bytes, see {@link ExplorationResidency}
+     * @param exportJson   whether the data is additionally exported as json
+     */
+    public ExplorationStorage(Path folder, LongSupplier memoryBudget, BooleanSupplier exportJson) {
+        this.folder = folder;
+        this.memoryBudget = memoryBudget;
+        this.exportJson = exportJson;
+        this.ioExecutor = createIoExecutor();
     }
 
-    public static ExplorationData get(String world, UUID uuid) {
+    public ExplorationData get(String world, UUID uuid) {
         WorldData worldData = worldDataMap.get(world);
         return worldData != null ? worldData.get(uuid) : null;
     }
 
-    public static void load(String world, UUID uuid) {
-        WorldData worldData = worldDataMap.computeIfAbsent(world, o -> new WorldData(world));
-        worldData.load(uuid);
+    public void load(String world, UUID uuid) {
+        getWorldData(world).load(uuid);
     }
 
-    public static void unload(String world, UUID uuid) {
+    /**
+     * Loads the data on the storage I/O executor. Concurrent requests for the same data share one load.
+     */
+    public CompletableFuture<ExplorationData> loadAsync(String world, UUID uuid) {
+        WorldData worldData = getWorldData(world);
+        ExplorationData data = worldData.get(uuid);
+        if (data != null) {
+            return CompletableFuture.completedFuture(data);
+        }
+
+        CompletableFuture<ExplorationData> future = new CompletableFuture<>();
+        CompletableFuture<ExplorationData> existing = worldData.loading.putIfAbsent(uuid, future);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            ioExecutor.execute(() -> {
+                try {
+                    future.complete(worldData.load(uuid));
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                } finally {
+                    worldData.loading.remove(uuid, future);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            worldData.loading.remove(uuid, future);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    public void unload(String world, UUID uuid) {
         WorldData worldData = worldDataMap.get(world);
         if (worldData != null) {
             worldData.unload(uuid);
-            if (worldData.isEmpty())  {
-                worldDataMap.remove(world);
-            }
         }
     }
 
-    public static void save(String world, UUID uuid) {
+    public CompletableFuture<Void> unloadAsync(String world, UUID uuid) {
+        return runAsync(() -> unload(world, uuid));
+    }
+
+    public void save(String world, UUID uuid) {
         WorldData worldData = worldDataMap.get(world);
         if (worldData != null) {
             worldData.save(uuid);
         }
     }
 
-    public static void unloadFromAll(UUID uuid) {
+    public void unloadFromAll(UUID uuid) {
         for (String s : worldDataMap.keySet()) {
             unload(s, uuid);
         }
     }
 
-    public static void saveAll(UUID uuid) {
+    public CompletableFuture<Void> unloadFromAllAsync(UUID uuid) {
+        return runAsync(() -> unloadFromAll(uuid));
+    }
+
+    public void saveAll(UUID uuid) {
         for (String s : worldDataMap.keySet()) {
             save(s, uuid);
         }
     }
 
-    public static void saveAll(String worldName) {
+    public void saveAll(String worldName) {
         WorldData worldData = worldDataMap.get(worldName);
         if (worldData != null) {
             worldData.saveAll();
         }
     }
 
-    private static class WorldData {
-        private final Map<UUID, Config<ExplorationData>> playerData = new HashMap<>();
+    /**
+     * Schedules a save of all loaded data of the world, unless one is already pending
+     */
+    public CompletableFuture<Void> saveAllAsync(String worldName) {
+        WorldData worldData = worldDataMap.get(worldName);
+        if (worldData == null || !worldData.savePending.compareAndSet(false, true)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return runAsync(() -> {
+            worldData.savePending.set(false);
+            worldData.saveAll();
+        });
+    }
+
+    /**
+     * Loads the given shards of a loaded data set on the storage I/O executor. Concurrent requests for the same shard
+     * share one load.
+     */
+    public CompletableFuture<Void> loadShardsAsync(String world, UUID uuid, LongCollection shards) {
+        WorldData worldData = worldDataMap.get(world);
+        if (worldData == null || shards.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>(shards.size());
+        shards.forEach(shard -> {
+            ShardRef ref = new ShardRef(uuid, shard);
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            CompletableFuture<Void> existing = worldData.shardLoading.putIfAbsent(ref, future);
+            if (existing != null) {
+                futures.add(existing);
+                return;
+            }
+            runAsync(() -> worldData.loadShard(uuid, shard)).whenComplete((unused, throwable) -> {
+                worldData.shardLoading.remove(ref, future);
+                if (throwable != null) {
+                    future.completeExceptionally(throwable);
+                } else {
+                    future.complete(null);
+                }
+            });
+            futures.add(future);
+        });
+        return CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * Unloads cold shards of the least recently used data sets until the estimated heap usage fits the budget
+     */
+    public CompletableFuture<Void> enforceMemoryBudgetAsync() {
+        long budget = memoryBudget.getAsLong();
+        return runAsync(() -> ExplorationResidency.enforce(budget, worldDataMap.values().stream()
+                .flatMap(worldData -> worldData.playerData.entrySet().stream()
+                        .map(entry -> new ExplorationResidency.Resident(worldData.worldName, entry.getKey(), entry.getValue(), worldData::evict)))
+                .toList()));
+    }
+
+    /**
+     * Waits for pending I/O and unloads everything
+     */
+    public void shutdown() {
+        ioExecutor.shutdown();
+        try {
+            if (!ioExecutor.awaitTermination(30, TimeUnit.SECONDS)) {
+                LOGGER.atWarning().log("Timed out while waiting for exploration storage I/O");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (WorldData worldData : worldDataMap.values()) {
+            worldData.unloadAll();
+        }
+    }
+
+    private CompletableFuture<Void> runAsync(Runnable runnable) {
+        try {
+            return CompletableFuture.runAsync(runnable, ioExecutor);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private WorldData getWorldData(String world) {
+        return worldDataMap.computeIfAbsent(world, WorldData::new);
+    }
+
+    private static ThreadPoolExecutor createIoExecutor() {
+        AtomicInteger threadId = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(IO_THREADS, IO_THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(IO_QUEUE_CAPACITY), runnable -> {
+            Thread thread = new Thread(runnable, "ExplorersMap-Storage-" + threadId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private class WorldData {
+        // Compact a shard once its journal holds more records than a shard has regions
+        private static final int MAX_JOURNAL_RECORDS = ExplorationData.SHARD_REGIONS;
+
+        private static final int LOCK_STRIPES = 16;
+
+        private final Map<UUID, ExplorationData> playerData = new ConcurrentHashMap<>();
+        private final Map<UUID, CompletableFuture<ExplorationData>> loading = new ConcurrentHashMap<>();
+        private final Map<ShardRef, CompletableFuture<Void>> shardLoading = new ConcurrentHashMap<>();
+        private final AtomicBoolean savePending = new AtomicBoolean();
+        // Loads, saves and unloads of the same data are serialized, different players don't block each other
+        private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
         private final String worldName;
 
         private WorldData(String worldName) {
             this.worldName = worldName;
+            for (int i = 0; i < locks.length; i++) {
+                locks[i] = new ReentrantLock();
+            }
+        }
+
+        private ReentrantLock lockFor(UUID uuid) {
+            return locks[Math.floorMod(uuid.hashCode(), LOCK_STRIPES)];
         }
 
         public ExplorationData get(UUID uuid) {
-            Config<ExplorationData> config = playerData.get(uuid);
-            return config != null ? config.get() : null;
+            return playerData.get(uuid);
+        }
+
+        public ExplorationData load(UUID uuid) {
+            ReentrantLock lock = lockFor(uuid);
+            lock.lock();
+            try {
+                return load0(uuid);
+            } finally {
+                lock.unlock();
+            }
         }
 
-        public void load(UUID uuid) {
-            if (playerData.containsKey(uuid)) {
+        /**
+         * Only lists the shards on disk, they are loaded on demand
+         */
+        private ExplorationData load0(UUID uuid) {
+            ExplorationData loaded = playerData.get(uuid);
+            if (loaded != null) {
+                return loaded;
+            }
+
+            ExplorationData data = new ExplorationData();
+            data.setWorldName(worldName);
+            try {
+                migrateLegacy(uuid);
+                data.setUnloadedShards(listShards(uuid));
+            } catch (IOException e) {
+                LOGGER.atSevere().log("Failed to load exploration data of " + uuid + " in " + worldName, e);
+                return null;
+            }
+            playerData.put(uuid, data);
+            return data;
+        }
+
+        public void loadShard(UUID uuid, long shard) {
+            ReentrantLock lock = lockFor(uuid);
+            lock.lock();
+            try {
+                ExplorationData data = playerData.get(uuid);
+                if (data != null) {
+                    loadShard0(uuid, data, shard);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void loadShard0(UUID uuid, ExplorationData data, long shard) {
+            if (data.isShardLoaded(shard)) {
+                return;
+            }
+
+            Path file = getShardFile(uuid, shard, ExplorationFile.EXTENSION);
+            ExplorationData fromDisk;
+            try {
+                fromDisk = ExplorationFile.read(file, ExplorationData.SHARD_REGIONS);
+                if (fromDisk == null) {
+                    fromDisk = new ExplorationData();
+                }
+                ExplorationJournal.replay(getShardFile(uuid, shard, ExplorationJournal.EXTENSION), fromDisk);
+            } catch (IOException e) {
+                LOGGER.atSevere().log("Failed to load exploration shard " + file + " of " + uuid + " in " + worldName, e);
+                // Keep the broken file around instead of overwriting it on the next compaction
+                try {
+                    Files.move(file, file.resolveSibling(file.getFileName() + ".corrupt"), StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException ex) {
+                    // Still loaded as empty, otherwise the tracker would request the shard again every tick
+                    LOGGER.atSevere().log("Failed to move corrupted exploration shard " + file + " of " + uuid + " in " + worldName
+                        + ", it will be replaced on the next compaction", ex);
+                }
+                fromDisk = new ExplorationData();
+            }
+            data.mergeShard(shard, fromDisk);
+        }
+
+        private void loadAllShards(UUID uuid, ExplorationData data) {
+            LongIterator iterator = data.getUnloadedShards(0, 0).iterator();
+            while (iterator.hasNext()) {
+                loadShard0(uuid, data, iterator.nextLong());
+            }
+        }
+
+        /**
+         * Unloads cold shards of the given data set, the caller has to make sure the data is still loaded
+         */
+        public int evict(UUID uuid, LongPredicate cold) {
+            ReentrantLock lock = lockFor(uuid);
+            lock.lock();
+            try {
+                ExplorationData data = playerData.get(uuid);
+                return data != null ? data.evictShards(cold) : 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private LongSet listShards(UUID uuid) throws IOException {
+            LongSet shards = new LongOpenHashSet();
+            Path dir = getDirectory().resolve(uuid.toString());
+            if (!Files.isDirectory(dir)) {
+                return shards;
+            }
+            try (Stream<Path> files = Files.list(dir)) {
+                files.forEach(file -> {
+                    Matcher matcher = SHARD_FILE_PATTERN.matcher(file.getFileName().toString());
+                    if (matcher.matches()) {
+                        shards.add(ChunkUtil.indexChunk(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2))));
+                    }
+                });
+            }
+            return shards;
+        }
+
+        /**
+         * Splits the single file data of older versions into shards
+         */
+        private void migrateLegacy(UUID uuid) throws IOException {
+            Path dir = getDirectory();
+            Path legacyFile = dir.resolve(uuid + ExplorationFile.EXTENSION);
+            Path legacyJournal = dir.resolve(uuid + ExplorationJournal.EXTENSION);
+            Path legacyJson = dir.resolve(uuid + ".json");
+            if (Files.isDirectory(dir.resolve(uuid.toString()))
+                || (!Files.exists(legacyFile) && !Files.exists(legacyJournal) && !Files.exists(legacyJson))) {
                 return;
             }
 
-            Path dir = ExplorersMapPlugin.getInstance().getDataDirectory().resolve("discovered").resolve(worldName);
-            Config<ExplorationData> config = new Config<>(dir, uuid.toString(), ExplorationData.CODEC);
-            config.load();
-            playerData.put(uuid, config);
+            ExplorationData data = null;
+            try {
+                data = ExplorationFile.read(legacyFile, Integer.MAX_VALUE);
+            } catch (IOException e) {
+                LOGGER.atSevere().log("Failed to migrate exploration data of " + uuid + " in " + worldName, e);
+                Files.move(legacyFile, legacyFile.resolveSibling(legacyFile.getFileName() + ".corrupt"), StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (data == null && Files.exists(legacyJson)) {
+                Config<ExplorationData> config = new Config<>(dir, uuid.toString(), ExplorationData.CODEC);
+                config.load();
+                data = config.get();
+            }
+            if (data == null) {
+                data = new ExplorationData();
+            }
+            ExplorationJournal.replay(legacyJournal, data);
+
+            // Write into a temporary directory first, a partially migrated directory would hide the legacy data
+            Path tmpDir = dir.resolve(uuid + ".migrating");
+            if (Files.isDirectory(tmpDir)) {
+                try (Stream<Path> files = Files.list(tmpDir)) {
+                    for (Path file : (Iterable<Path>) files::iterator) {
+                        Files.delete(file);
+                    }
+                }
+            }
+            Files.createDirectories(tmpDir);
+            for (Long2ObjectMap.Entry<ExplorationSnapshot> entry : data.snapshot().splitByShard().long2ObjectEntrySet()) {
+                ExplorationFile.write(tmpDir.resolve(getShardFileName(entry.getLongKey(), ExplorationFile.EXTENSION)), entry.getValue());
+            }
+            Files.move(tmpDir, dir.resolve(uuid.toString()), StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(legacyFile);
+            ExplorationJournal.delete(legacyJournal);
+            if (Files.exists(legacyJson) && !exportJson.getAsBoolean()) {
+                Files.move(legacyJson, dir.resolve(uuid + ".json.bak"), StandardCopyOption.REPLACE_EXISTING);
+            }
         }
 
         public void unload(UUID uuid) {
-            Config<ExplorationData> config = playerData.remove(uuid);
-            if (config != null) {
-                config.save();
+            ReentrantLock lock = lockFor(uuid);
+            lock.lock();
+            try {
+                ExplorationData data = playerData.remove(uuid);
+                if (data != null) {
+                    write(uuid, data);
+                }
+            } finally {
+                lock.unlock();
             }
         }
 
         public void save(UUID uuid) {
-            Config<ExplorationData> config = playerData.get(uuid);
-            if (config != null) {
+            ReentrantLock lock = lockFor(uuid);
+            lock.lock();
+            try {
+                ExplorationData data = playerData.get(uuid);
+                if (data != null) {
+                    write(uuid, data);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void write(UUID uuid, ExplorationData data) {
+            ExplorationSnapshot changes = data.snapshotChanges();
+            if (changes == null) {
+                return;
+            }
+
+            for (Long2ObjectMap.Entry<ExplorationSnapshot> entry : changes.splitByShard().long2ObjectEntrySet()) {
+                long shard = entry.getLongKey();
+                ExplorationSnapshot written = entry.getValue();
+                Path journal = getShardFile(uuid, shard, ExplorationJournal.EXTENSION);
+                try {
+                    if (ExplorationJournal.countRecords(journal) + written.size() > MAX_JOURNAL_RECORDS) {
+                        // Full writes need the whole shard in memory
+                        loadShard0(uuid, data, shard);
+                        written = data.snapshotShard(shard);
+                        ExplorationFile.write(getShardFile(uuid, shard, ExplorationFile.EXTENSION), written);
+                        ExplorationJournal.delete(journal);
+                    } else {
+                        ExplorationJournal.append(journal, written);
+                    }
+                } catch (IOException e) {
+                    LOGGER.atSevere().log("Failed to save exploration data of " + uuid + " in " + worldName, e);
+                    data.markDirty();
+                    continue;
+                }
+                written.markPersisted();
+            }
+
+            if (exportJson.getAsBoolean()) {
+                // Debug export, uses the old JSON format
+                loadAllShards(uuid, data);
+                Config<ExplorationData> config = new Config<>(getDirectory(), uuid.toString(), ExplorationData.CODEC);
+                config.load();
+                config.get().setWorldName(data.getWorldName());
+                config.get().setRegions(data.snapshot().toRegions());
                 config.save();
             }
         }
@@ -112,8 +501,25 @@ public class ExplorationStorage {
             }
         }
 
-        public boolean isEmpty() {
-            return playerData.isEmpty();
+        public void unloadAll() {
+            for (UUID uuid : playerData.keySet()) {
+                unload(uuid);
+            }
+        }
+
+        private Path getDirectory() {
+            return folder.resolve(worldName);
         }
+
+        private Path getShardFile(UUID uuid, long shard, String extension) {
+            return getDirectory().resolve(uuid.toString()).resolve(getShardFileName(shard, extension));
+        }
+
+        private static String getShardFileName(long shard, String extension) {
+            return ChunkUtil.xOfChunkIndex(shard) + "." + ChunkUtil.zOfChunkIndex(shard) + extension;
+        }
+    }
+
+    private record ShardRef(UUID uuid, long shard) {
     }
 }
@@ -7,73 +7,280 @@ import com.hypixel.hytale.math.util.ChunkUtil;
 import com.hypixel.hytale.math.vector.Vector2d;
 import com.hypixel.hytale.protocol.packets.worldmap.MapChunk;
 import dev.cerus.explorersmap.util.BetterLongArrayCodec;
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.List;
-import java.util.stream.Collectors;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 
+/**
+ * The explored chunks of a 16x16 chunk region, stored as a 256 bit bitmap
+ * <p>
+ * {@link #markExplored(MapChunk)} and {@link #merge(long[])} never modify the published bitmap, they swap in a
+ * modified copy instead. A bitmap obtained through {@link #getBits()} is therefore an immutable snapshot that can
+ * be serialized on any thread. {@link #set(int)} and {@link #clear(int)} modify the bitmap in place and may only
+ * be used on regions that are not shared, like freshly decoded regions or the copies from {@link #copyForSending(int, int)}.
+ */
 public final class ExploredRegion {
 
+    public static final int SIZE = 16;
+    public static final int CHUNKS = SIZE * SIZE;
+    static final int WORDS = CHUNKS / Long.SIZE;
+
+    private static final VarHandle BITS;
+
+    static {
+        try {
+            BITS = MethodHandles.lookup().findVarHandle(ExploredRegion.class, "bits", long[].class);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
     public static final BuilderCodec<ExploredRegion> CODEC = BuilderCodec.builder(ExploredRegion.class, ExploredRegion::new)
             .append(new KeyedCodec<>("Index", Codec.LONG), ExploredRegion::setKey, ExploredRegion::getKey).add()
+            .append(new KeyedCodec<>("Bitmap", BetterLongArrayCodec.INSTANCE), (comp, bitmap) -> {
+                System.arraycopy(bitmap, 0, comp.bits, 0, Math.min(bitmap.length, WORDS));
+            }, comp -> comp.bits.clone()).add()
+            // Legacy format, only read to migrate old files
             .append(new KeyedCodec<>("Chunks", BetterLongArrayCodec.INSTANCE), (comp, explored) -> {
-                comp.chunks.clear();
                 for (long index : explored) {
-                    comp.chunks.add(index);
-                }
-            }, comp -> {
-                long[] arr = new long[comp.chunks.size()];
-                for (int i = 0; i < comp.chunks.size(); i++) {
-                    arr[i] = comp.chunks.get(i);
+                    comp.set(localIndex(ChunkUtil.xOfChunkIndex(index), ChunkUtil.zOfChunkIndex(index)));
                 }
-                return arr;
-            }).add()
+            }, comp -> null).add()
             .build();
     private long key;
-    private List<Long> chunks;
+    private volatile long[] bits;
+    // The bitmap that was last written to disk, the region is dirty if it was replaced since
+    private volatile long[] persisted;
+    // Local indices of the explored chunks nearest-first, only set on copies for sending
+    private int[] sendOrder;
 
     public ExploredRegion() {
-        chunks = new ArrayList<>();
+        bits = new long[WORDS];
+        persisted = bits;
     }
 
-    public ExploredRegion(long key, List<Long> chunks) {
+    public ExploredRegion(long key) {
+        this();
         this.key = key;
-        this.chunks = chunks;
     }
 
-    public void markExplored(MapChunk chunk) {
-        long key = ChunkUtil.indexChunk(chunk.chunkX, chunk.chunkZ);
-        if (!chunks.contains(key)) {
-            chunks.add(key);
+    public ExploredRegion(long key, long[] bits) {
+        if (bits.length != WORDS) {
+            throw new IllegalArgumentException("Expected " + WORDS + " words, but got " + bits.length);
         }
+        this.key = key;
+        this.bits = bits;
+        this.persisted = bits;
     }
 
+    public static int localIndex(int chunkX, int chunkZ) {
+        return (chunkX & (SIZE - 1)) | ((chunkZ & (SIZE - 1)) << 4);
+    }
+
+    public static boolean get(long[] bits, int localIndex) {
+        return (bits[localIndex >>> 6] & (1L << localIndex)) != 0;
+    }
+
+    /**
+     * Finds the next set bit in a region bitmap
+     *
+     * @param fromIndex the local index to start searching at (inclusive)
+     * @return the local index of the next set bit or -1 if there is none
+     */
+    public static int nextSet(long[] bits, int fromIndex) {
+        int word = fromIndex >>> 6;
+        if (word >= WORDS) {
+            return -1;
+        }
+        long remaining = bits[word] & (-1L << fromIndex);
+        while (true) {
+            if (remaining != 0) {
+                return (word << 6) + Long.numberOfTrailingZeros(remaining);
+            }
+            if (++word == WORDS) {
+                return -1;
+            }
+            remaining = bits[word];
+        }
+    }
+
+    /**
+     * Marks the chunk as explored
+     *
+     * @return true if the chunk was not explored before
+     */
+    public boolean markExplored(MapChunk chunk) {
+        int localIndex = localIndex(chunk.chunkX, chunk.chunkZ);
+        long mask = 1L << localIndex;
+        while (true) {
+            long[] current = bits;
+            if ((current[localIndex >>> 6] & mask) != 0) {
+                return false;
+            }
+            long[] updated = current.clone();
+            updated[localIndex >>> 6] |= mask;
+            if (BITS.compareAndSet(this, current, updated)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Adds all explored chunks of the given bitmap to this region
+     *
+     * @return the new bitmap or null if this region did not change
+     */
+    public long[] merge(long[] other) {
+        while (true) {
+            long[] current = bits;
+            long[] updated = null;
+            for (int i = 0; i < WORDS; i++) {
+                if ((current[i] | other[i]) != current[i]) {
+                    if (updated == null) {
+                        updated = current.clone();
+                    }
+                    updated[i] |= other[i];
+                }
+            }
+            if (updated == null) {
+                return null;
+            }
+            if (BITS.compareAndSet(this, current, updated)) {
+                return updated;
+            }
+        }
+    }
+
+    public boolean isExplored(int chunkX, int chunkZ) {
+        return get(localIndex(chunkX, chunkZ));
+    }
+
+    public boolean get(int localIndex) {
+        return get(bits, localIndex);
+    }
+
+    public boolean set(int localIndex) {
+        long mask = 1L << localIndex;
+        long word = bits[localIndex >>> 6];
+        if ((word & mask) != 0) {
+            return false;
+        }
+        bits[localIndex >>> 6] = word | mask;
+        return true;
+    }
+
+    public void clear(int localIndex) {
+        bits[localIndex >>> 6] &= ~(1L << localIndex);
+    }
+
+    /**
+     * Finds the next explored chunk
+     *
+     * @param fromIndex the local index to start searching at (inclusive)
+     * @return the local index of the next explored chunk or -1 if there is none
+     */
+    public int nextExplored(int fromIndex) {
+        return nextSet(bits, fromIndex);
+    }
+
+    /**
+     * Converts a local index of this region into a chunk index
+     */
+    public long chunkIndex(int localIndex) {
+        int chunkX = (ChunkUtil.xOfChunkIndex(key) << 4) | (localIndex & (SIZE - 1));
+        int chunkZ = (ChunkUtil.zOfChunkIndex(key) << 4) | (localIndex >>> 4);
+        return ChunkUtil.indexChunk(chunkX, chunkZ);
+    }
+
+    /**
+     * Copies the region for a tracker, {@link #nextToSend(int)} walks the explored chunks nearest to the given chunk first
+     */
     public ExploredRegion copyForSending(int cx, int cz) {
-        return new ExploredRegion(key, chunks.stream()
-                .sorted(Comparator.comparingDouble(k -> Vector2d.distanceSquared(
-                        cx, cz,
-                        ChunkUtil.xOfChunkIndex(k), ChunkUtil.zOfChunkIndex(k)
-                )))
-                .collect(Collectors.toList()));
+        ExploredRegion copy = new ExploredRegion(key, bits.clone());
+        int[] order = new int[getExploredCount()];
+        int count = 0;
+        for (int localIndex = copy.nextExplored(0); localIndex != -1; localIndex = copy.nextExplored(localIndex + 1)) {
+            order[count++] = localIndex;
+        }
+        int baseX = ChunkUtil.xOfChunkIndex(key) << 4;
+        int baseZ = ChunkUtil.zOfChunkIndex(key) << 4;
+        IntArrays.quickSort(order, (a, b) -> Double.compare(
+                Vector2d.distanceSquared(cx, cz, baseX | (a & (SIZE - 1)), baseZ | (a >>> 4)),
+                Vector2d.distanceSquared(cx, cz, baseX | (b & (SIZE - 1)), baseZ | (b >>> 4))
+        ));
+        copy.sendOrder = order;
+        return copy;
     }
 
-    public void setKey(long key) {
-        this.key = key;
+    /**
+     * Finds the next chunk to send of a copy from {@link #copyForSending(int, int)}, skipping cleared chunks
+     *
+     * @param fromPosition the position in the send order to start searching at (inclusive)
+     * @return the position of the next explored chunk or -1 if there is none, see {@link #localIndexToSend(int)}
+     */
+    public int nextToSend(int fromPosition) {
+        for (int position = fromPosition; position < sendOrder.length; position++) {
+            if (get(sendOrder[position])) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the local index of the chunk at the given position in the send order
+     */
+    public int localIndexToSend(int position) {
+        return sendOrder[position];
     }
 
-    public void setChunks(List<Long> chunks) {
-        this.chunks = chunks;
+    public void setKey(long key) {
+        this.key = key;
     }
 
     public long getKey() {
         return key;
     }
 
-    public List<Long> getChunks() {
-        return chunks;
+    /**
+     * @return the current bitmap, must not be modified if the region is shared
+     */
+    public long[] getBits() {
+        return bits;
+    }
+
+    public boolean isDirty() {
+        return bits != persisted;
+    }
+
+    /**
+     * @return true if the given bitmap of this region is the one that was last written to disk
+     */
+    boolean isPersisted(long[] snapshot) {
+        return persisted == snapshot;
+    }
+
+    /**
+     * Remembers the given bitmap as written to disk
+     */
+    void markPersisted(long[] snapshot) {
+        persisted = snapshot;
+    }
+
+    public int getExploredCount() {
+        int count = 0;
+        for (long word : bits) {
+            count += Long.bitCount(word);
+        }
+        return count;
     }
 
     public boolean isDone() {
-        return chunks.isEmpty();
+        for (long word : bits) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
     }
 }
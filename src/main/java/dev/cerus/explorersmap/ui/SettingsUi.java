@@ -118,6 +118,7 @@ public class SettingsUi extends InteractiveCustomUIPage<SettingsUi.Data> {
         ExplorersMapConfig confObj = config.get();
 
         boolean zoomChanged = confObj.getMinZoom() != data.getMinZoom();
+        boolean resolutionChanged = confObj.getResolution() != data.getResolution();
 
         confObj.setResolution(data.getResolution());
         confObj.setExplorationRadius(data.getExplorationRadius());
@@ -129,6 +130,11 @@ public class SettingsUi extends InteractiveCustomUIPage<SettingsUi.Data> {
         confObj.setUnlimitedPlayerTracking(data.isUnlimitedPlayerTracking());
         config.save();
 
+        if (resolutionChanged) {
+            // Stored tiles are rendered in the new resolution in the background instead of when players load them
+            ExplorersMapPlugin.getInstance().getResolutionMigration().start(data.getResolution());
+        }
+
         for (World world : Universe.get().getWorlds().values()) {
             world.execute(() -> {
                 if (zoomChanged) {
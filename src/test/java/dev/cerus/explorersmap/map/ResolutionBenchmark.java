@@ -0,0 +1,139 @@
+package dev.cerus.explorersmap.map;
+
+import com.hypixel.hytale.protocol.packets.worldmap.MapImage;
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares {@link Resolution#rescale(MapImage)} against the former {@link BufferedImage} based rescale
+ * <p>
+ * Not run by the build, start it with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=dev.cerus.explorersmap.map.ResolutionBenchmark} or from the IDE. Prints the average time per
+ * tile of both paths and the largest channel difference between their results for every resolution.
+ */
+public final class ResolutionBenchmark {
+
+    // The tile size of Resolution.BEST
+    private static final int SOURCE_SIZE = 96;
+    private static final int TILES = 256;
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int ROUNDS = 50;
+
+    // Keeps the JIT from dropping the rescales
+    private static volatile int blackhole;
+
+    private ResolutionBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        MapImage[] tiles = createTiles(new Random(42));
+        List<Resolution> targets = Resolution.LEVELS.subList(1, Resolution.LEVELS.size());
+
+        for (Resolution resolution : targets) {
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                runPrimitive(resolution, tiles);
+                runLegacy(resolution, tiles);
+            }
+
+            long primitive = 0;
+            long legacy = 0;
+            for (int i = 0; i < ROUNDS; i++) {
+                primitive += runPrimitive(resolution, tiles);
+                legacy += runLegacy(resolution, tiles);
+            }
+
+            int maxDifference = 0;
+            for (MapImage tile : tiles) {
+                maxDifference = Math.max(maxDifference, maxDifference(resolution.rescale(tile), legacyRescale(resolution, tile)));
+            }
+
+            long tileRuns = (long) ROUNDS * TILES;
+            System.out.printf("%-8s primitive %6.1f us/tile, legacy %7.1f us/tile, %5.1fx faster, max channel difference %d%n",
+                    resolution.getType(), primitive / 1000.0 / tileRuns, legacy / 1000.0 / tileRuns,
+                    (double) legacy / primitive, maxDifference);
+        }
+    }
+
+    /**
+     * Half of the tiles are opaque, the other half has random alpha. Colors come in runs like on real map tiles.
+     */
+    private static MapImage[] createTiles(Random random) {
+        MapImage[] tiles = new MapImage[TILES];
+        for (int t = 0; t < TILES; t++) {
+            int[] data = new int[SOURCE_SIZE * SOURCE_SIZE];
+            int color = random.nextInt();
+            for (int i = 0; i < data.length; i++) {
+                if (random.nextInt(8) == 0) {
+                    color = random.nextInt();
+                }
+                data[i] = t % 2 == 0 ? color | 0xFF : color;
+            }
+            tiles[t] = new MapImage(SOURCE_SIZE, SOURCE_SIZE, data);
+        }
+        return tiles;
+    }
+
+    private static long runPrimitive(Resolution resolution, MapImage[] tiles) {
+        long start = System.nanoTime();
+        int sink = 0;
+        for (MapImage tile : tiles) {
+            sink += resolution.rescale(tile).data[0];
+        }
+        long elapsed = System.nanoTime() - start;
+        consume(sink);
+        return elapsed;
+    }
+
+    private static long runLegacy(Resolution resolution, MapImage[] tiles) {
+        long start = System.nanoTime();
+        int sink = 0;
+        for (MapImage tile : tiles) {
+            sink += legacyRescale(resolution, tile).data[0];
+        }
+        long elapsed = System.nanoTime() - start;
+        consume(sink);
+        return elapsed;
+    }
+
+    /**
+     * The rescale as it was before {@link TileScaler}, converting the RGBA pixels to a {@link BufferedImage} and back
+     */
+    private static MapImage legacyRescale(Resolution resolution, MapImage tile) {
+        BufferedImage tileImg = new BufferedImage(tile.width, tile.height, BufferedImage.TYPE_INT_ARGB);
+        for (int x = 0; x < tile.width; x++) {
+            for (int z = 0; z < tile.height; z++) {
+                int color = tile.data[x * tile.width + z];
+                int r = color >> 24 & 0xFF;
+                int g = color >> 16 & 0xFF;
+                int b = color >> 8 & 0xFF;
+                int a = color & 0xFF;
+                tileImg.setRGB(x, z, (a << 24) | (r << 16) | (g << 8) | b);
+            }
+        }
+        tileImg = resolution.rescale(tileImg);
+
+        MapImage result = new MapImage(tileImg.getWidth(), tileImg.getHeight(), new int[tileImg.getWidth() * tileImg.getHeight()]);
+        for (int x = 0; x < tileImg.getWidth(); x++) {
+            for (int y = 0; y < tileImg.getHeight(); y++) {
+                int rgb = tileImg.getRGB(x, y);
+                result.data[x * result.width + y] = ((rgb >> 16) & 0xFF) << 24 | ((rgb >> 8) & 0xFF) << 16 | (rgb & 0xFF) << 8 | ((rgb >> 24) & 0xFF);
+            }
+        }
+        return result;
+    }
+
+    private static int maxDifference(MapImage a, MapImage b) {
+        int max = 0;
+        for (int i = 0; i < a.data.length; i++) {
+            for (int shift = 0; shift < 32; shift += 8) {
+                max = Math.max(max, Math.abs((a.data[i] >>> shift & 0xFF) - (b.data[i] >>> shift & 0xFF)));
+            }
+        }
+        return max;
+    }
+
+    private static void consume(int value) {
+        blackhole = value;
+    }
+}
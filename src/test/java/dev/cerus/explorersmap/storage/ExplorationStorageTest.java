@@ -0,0 +1,110 @@
+package dev.cerus.explorersmap.storage;
+
+import com.hypixel.hytale.protocol.packets.worldmap.MapChunk;
+import it.unimi.dsi.fastutil.longs.LongList;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ExplorationStorageTest {
+
+    private static final String WORLD = "world";
+    private static final int PLAYERS = 4;
+    private static final int MARKING_THREADS = 8;
+    private static final int CHUNKS_PER_THREAD = 5000;
+    // Spans several shards in every direction
+    private static final int RANGE = 1024;
+
+    @TempDir
+    Path folder;
+
+    /**
+     * Marks chunks from several threads while the data is saved, snapshotted and evicted concurrently, then checks that
+     * a new storage reads every marked chunk back
+     */
+    @Test
+    void concurrentMarksSurviveSavesAndEviction() throws Exception {
+        ExplorationStorage storage = new ExplorationStorage(folder, () -> 0, () -> false);
+        List<UUID> players = new ArrayList<>();
+        for (int i = 0; i < PLAYERS; i++) {
+            players.add(new UUID(1, i));
+        }
+        List<ExplorationData> data = new ArrayList<>();
+        for (UUID player : players) {
+            data.add(storage.loadAsync(WORLD, player).get(10, TimeUnit.SECONDS));
+        }
+
+        ExecutorService threads = Executors.newFixedThreadPool(MARKING_THREADS + 1);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean marking = new AtomicBoolean(true);
+        List<Future<long[]>> marks = new ArrayList<>();
+        for (int t = 0; t < MARKING_THREADS; t++) {
+            int seed = t;
+            marks.add(threads.submit(() -> {
+                Random random = new Random(seed);
+                long[] marked = new long[CHUNKS_PER_THREAD];
+                start.await();
+                for (int i = 0; i < CHUNKS_PER_THREAD; i++) {
+                    int player = random.nextInt(PLAYERS);
+                    int chunkX = random.nextInt(RANGE) - RANGE / 2;
+                    int chunkZ = random.nextInt(RANGE) - RANGE / 2;
+                    data.get(player).markExplored(new MapChunk(chunkX, chunkZ, null));
+                    marked[i] = (long) player << 40 | (long) (chunkX + RANGE) << 20 | (chunkZ + RANGE);
+                }
+                return marked;
+            }));
+        }
+        Future<?> background = threads.submit(() -> {
+            start.await();
+            while (marking.get()) {
+                storage.saveAllAsync(WORLD).get(10, TimeUnit.SECONDS);
+                // A budget of 0 evicts every shard that is not hot, evicted shards are saved first
+                storage.enforceMemoryBudgetAsync().get(10, TimeUnit.SECONDS);
+                data.forEach(ExplorationData::snapshot);
+            }
+            return null;
+        });
+
+        start.countDown();
+        List<long[]> results = new ArrayList<>();
+        for (Future<long[]> future : marks) {
+            results.add(future.get(60, TimeUnit.SECONDS));
+        }
+        marking.set(false);
+        background.get(60, TimeUnit.SECONDS);
+        threads.shutdown();
+        storage.shutdown();
+
+        ExplorationStorage reopened = new ExplorationStorage(folder, () -> Long.MAX_VALUE, () -> false);
+        List<ExplorationData> read = new ArrayList<>();
+        for (UUID player : players) {
+            ExplorationData playerData = reopened.loadAsync(WORLD, player).get(10, TimeUnit.SECONDS);
+            assertNotNull(playerData);
+            LongList shards = playerData.getUnloadedShards(0, 0);
+            reopened.loadShardsAsync(WORLD, player, shards).get(30, TimeUnit.SECONDS);
+            read.add(playerData);
+        }
+        for (long[] marked : results) {
+            for (long mark : marked) {
+                int player = (int) (mark >>> 40);
+                int chunkX = (int) (mark >>> 20 & 0xFFFFF) - RANGE;
+                int chunkZ = (int) (mark & 0xFFFFF) - RANGE;
+                assertTrue(read.get(player).isExplored(chunkX, chunkZ), "Chunk " + chunkX + ", " + chunkZ + " of player " + player + " was lost");
+            }
+        }
+        reopened.shutdown();
+    }
+}